@@ -10,7 +10,12 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.IntStream;
@@ -21,14 +26,17 @@ public class FixedPrestartedConcurrentLongSumServerWithTimeout {
   private static final int BUFFER_SIZE = 1024;
   private final ServerSocketChannel serverSocketChannel;
 
-  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-
   private final int maxClient;
 
   private final int timeout;
 
   private final ThreadData[] threadData;
 
+  // ThreadData whose client has just been set, to be scheduled by the watchdog
+  private final ConcurrentLinkedQueue<ThreadData> activated = new ConcurrentLinkedQueue<>();
+
+  private volatile Thread watchdog;
+
   public FixedPrestartedConcurrentLongSumServerWithTimeout(int port, int maxClient, int timeout) throws IOException {
     serverSocketChannel = ServerSocketChannel.open();
     serverSocketChannel.bind(new InetSocketAddress(port));
@@ -50,18 +58,9 @@ public class FixedPrestartedConcurrentLongSumServerWithTimeout {
   public void launch() {
     logger.info("Server started");
 
-    var checkActive = Thread.ofPlatform().start(() ->{
-      while (!Thread.interrupted()){
-        Arrays.stream(threadData).forEach(t -> {
-          try {
-            t.closeIfInactive(timeout);
-            Thread.sleep(timeout / 4);
-          } catch (InterruptedException e) {
-            logger.log(Level.INFO, "Thread checkActive is interrupted", e.getCause());
-          }
-        });
-      }
-    });
+    var checkActive = Thread.ofPlatform().unstarted(this::watchdog);
+    watchdog = checkActive;
+    checkActive.start();
 
 
     var threadClients = new ArrayList<Thread>();
@@ -124,6 +123,59 @@ public class FixedPrestartedConcurrentLongSumServerWithTimeout {
     });
   }
 
+  /**
+   * Closes the clients whose deadline has expired.
+   *
+   * The ThreadData with a client are kept in a priority queue ordered by the
+   * deadline they had when they were scheduled. The watchdog sleeps until the
+   * earliest one; as tick only pushes the deadline back, an entry whose real
+   * deadline is later is simply rescheduled instead of being closed. So the
+   * precision of the timeout and the cost of the watchdog do not depend on the
+   * number of threads.
+   */
+  private void watchdog() {
+    var queue = new PriorityQueue<ThreadData>(Comparator.comparingLong(t -> t.scheduledDeadline));
+    while (!Thread.interrupted()) {
+      ThreadData data;
+      while ((data = activated.poll()) != null) {
+        if (!data.queued) {
+          data.queued = true;
+          data.scheduledDeadline = data.deadline;
+          queue.add(data);
+        }
+      }
+      var now = System.nanoTime();
+      var first = queue.peek();
+      if (first == null) {
+        LockSupport.park(this);
+        continue;
+      }
+      if (first.scheduledDeadline - now > 0) {
+        LockSupport.parkNanos(this, first.scheduledDeadline - now);
+        continue;
+      }
+      queue.poll();
+      var deadline = first.deadline;
+      if (deadline == ThreadData.NO_CLIENT) {
+        first.queued = false; // scheduled again by setSocketChannel
+        continue;
+      }
+      if (deadline - now > 0) {
+        first.scheduledDeadline = deadline;
+        queue.add(first);
+        continue;
+      }
+      deadline = first.closeIfInactive(); // tick may have been called since deadline was read
+      if (deadline == ThreadData.NO_CLIENT) {
+        first.queued = false; // scheduled again by setSocketChannel
+        continue;
+      }
+      first.scheduledDeadline = deadline;
+      queue.add(first);
+    }
+    logger.info("Thread checkActive is interrupted");
+  }
+
   /**
    * Treat the connection sc applying the protocol. All IOException are thrown
    *
@@ -136,6 +188,7 @@ public class FixedPrestartedConcurrentLongSumServerWithTimeout {
     if (sc == null){
       return;
     }
+    var buffer = ByteBuffer.allocate(BUFFER_SIZE);
     while (true) {
       buffer.clear();
       buffer.limit(Integer.BYTES);
@@ -148,16 +201,22 @@ public class FixedPrestartedConcurrentLongSumServerWithTimeout {
       if (nb < 0){
         return;
       }
-      buffer.clear();
-      buffer.limit(nb * Long.BYTES);
-      threadData.tick();
-      if (!readFully(sc, buffer)){
-        return;
-      }
-      buffer.flip();
+      // the operands are summed chunk by chunk, whatever the size of the request
+      var remaining = (long) nb * Long.BYTES;
       long sum = 0L;
-      while (buffer.hasRemaining()){
-        sum += buffer.getLong();
+      buffer.clear();
+      while (remaining > 0){
+        buffer.limit((int) Math.min(buffer.capacity(), remaining));
+        threadData.tick();
+        if (sc.read(buffer) == -1){
+          logger.info("Input stream closed");
+          return;
+        }
+        buffer.flip();
+        var nbLongs = buffer.remaining() / Long.BYTES;
+        sum += LongSumKernel.sum(buffer, nbLongs);
+        remaining -= nbLongs * Long.BYTES;
+        buffer.compact();
       }
 
       logger.info("send " + sum);
@@ -204,9 +263,16 @@ public class FixedPrestartedConcurrentLongSumServerWithTimeout {
 
   class ThreadData {
 
+    static final long NO_CLIENT = Long.MAX_VALUE;
+
     private SocketChannel client = null;
 
-    private long lastTime;
+    // System.nanoTime() after which the client is closed, written without lock by tick
+    private volatile long deadline = NO_CLIENT;
+
+    // only used by the watchdog thread
+    private long scheduledDeadline;
+    private boolean queued;
 
     private final Object lock = new Object();
 
@@ -217,24 +283,34 @@ public class FixedPrestartedConcurrentLongSumServerWithTimeout {
           return;
         }
         this.client = client;
-        lastTime = System.currentTimeMillis();
+        tick();
       }
+      activated.add(this);
+      LockSupport.unpark(watchdog);
     }
 
     void tick() {
-      synchronized (lock){
-        lastTime = System.currentTimeMillis();
-      }
+      deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
     }
 
-    void closeIfInactive(int timeout) {
+    /**
+     * Closes the client if its deadline has expired
+     *
+     * @return the deadline of the client if it is still connected, NO_CLIENT if
+     *         it has been closed or if there is no client
+     */
+    long closeIfInactive() {
       synchronized (lock){
         if (client == null){
-          return;
+          return NO_CLIENT;
         }
-        if (System.currentTimeMillis() - lastTime > timeout){
+        var current = deadline;
+        if (current - System.nanoTime() <= 0){
+          logger.info("Client closed after " + timeout + " ms of inactivity");
           close();
+          return NO_CLIENT;
         }
+        return current;
       }
     }
 
@@ -252,6 +328,8 @@ public class FixedPrestartedConcurrentLongSumServerWithTimeout {
           } catch (IOException e) {
             // Do nothing
           }
+          client = null;
+          deadline = NO_CLIENT;
         }
       }
     }
@@ -17,8 +17,6 @@ public class FixedPrestartedLongSumServer {
   private static final int BUFFER_SIZE = 1024;
   private final ServerSocketChannel serverSocketChannel;
 
-  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-
   private final int maxClient;
 
   public FixedPrestartedLongSumServer(int port, int maxClient) throws IOException {
@@ -66,7 +64,7 @@ public class FixedPrestartedLongSumServer {
    * @throws IOException
    */
   private void serve(SocketChannel sc) throws IOException {
-
+    var buffer = ByteBuffer.allocate(BUFFER_SIZE);
     while (true) {
       buffer.clear();
       buffer.limit(Integer.BYTES);
@@ -78,15 +76,21 @@ public class FixedPrestartedLongSumServer {
       if (nb < 0){
         return;
       }
-      buffer.clear();
-      buffer.limit(nb * Long.BYTES);
-      if (!readFully(sc, buffer)){
-        return;
-      }
-      buffer.flip();
+      // the operands are summed chunk by chunk, whatever the size of the request
+      var remaining = (long) nb * Long.BYTES;
       long sum = 0L;
-      while (buffer.hasRemaining()){
-        sum += buffer.getLong();
+      buffer.clear();
+      while (remaining > 0){
+        buffer.limit((int) Math.min(buffer.capacity(), remaining));
+        if (sc.read(buffer) == -1){
+          logger.info("Input stream closed");
+          return;
+        }
+        buffer.flip();
+        var nbLongs = buffer.remaining() / Long.BYTES;
+        sum += LongSumKernel.sum(buffer, nbLongs);
+        remaining -= nbLongs * Long.BYTES;
+        buffer.compact();
       }
 
       logger.info("send " + sum);
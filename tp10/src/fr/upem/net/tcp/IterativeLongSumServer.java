@@ -60,15 +60,24 @@ public class IterativeLongSumServer {
       }
       buffer.flip();
       var nb = buffer.getInt();
-      buffer.clear();
-      buffer.limit(nb * Long.BYTES);
-      if (!readFully(sc, buffer)){
+      if (nb < 0){
         return;
       }
-      buffer.flip();
+      // the operands are summed chunk by chunk, whatever the size of the request
+      var remaining = (long) nb * Long.BYTES;
       long sum = 0L;
-      while (buffer.hasRemaining()){
-        sum += buffer.getLong();
+      buffer.clear();
+      while (remaining > 0){
+        buffer.limit((int) Math.min(buffer.capacity(), remaining));
+        if (sc.read(buffer) == -1){
+          logger.info("Input stream closed");
+          return;
+        }
+        buffer.flip();
+        var nbLongs = buffer.remaining() / Long.BYTES;
+        sum += LongSumKernel.sum(buffer, nbLongs);
+        remaining -= nbLongs * Long.BYTES;
+        buffer.compact();
       }
 
       logger.info("send " + sum);
@@ -0,0 +1,117 @@
+package fr.upem.net.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Load client for any server of the LongSum protocol (the thread-per-client
+ * servers of this package or a selector-based one).
+ * <p>
+ * nbClients connections are opened concurrently, each by its own virtual
+ * thread. Once all are connected, every client sends nbRequests requests of
+ * nbLongs longs and checks each sum. The benchmark prints the number of
+ * connections, the requests/second and the errors.
+ */
+public class LongSumBenchmark {
+
+  private static final Logger logger = Logger.getLogger(LongSumBenchmark.class.getName());
+
+  private static void client(InetSocketAddress server, int nbRequests, int nbLongs, CountDownLatch connected,
+                             CountDownLatch start, LongAdder done, LongAdder errors) {
+    SocketChannel sc;
+    try {
+      sc = SocketChannel.open(server);
+    } catch (IOException e) {
+      errors.increment();
+      return;
+    } finally {
+      connected.countDown();
+    }
+    try (sc) {
+      start.await();
+      var request = ByteBuffer.allocate(Integer.BYTES + nbLongs * Long.BYTES);
+      var answer = ByteBuffer.allocate(Long.BYTES);
+      var random = ThreadLocalRandom.current();
+      for (var i = 0; i < nbRequests; i++) {
+        request.clear();
+        request.putInt(nbLongs);
+        var sum = 0L;
+        for (var j = 0; j < nbLongs; j++) {
+          var value = random.nextLong();
+          request.putLong(value);
+          sum += value;
+        }
+        request.flip();
+        while (request.hasRemaining()) {
+          sc.write(request);
+        }
+        answer.clear();
+        if (!readFully(sc, answer)) {
+          errors.increment();
+          return;
+        }
+        if (answer.flip().getLong() != sum) {
+          errors.increment();
+        }
+        done.increment();
+      }
+    } catch (IOException e) {
+      errors.increment();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  static boolean readFully(SocketChannel sc, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (sc.read(buffer) == -1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    if (args.length != 4 && args.length != 5) {
+      usage();
+      return;
+    }
+    var server = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+    var nbClients = Integer.parseInt(args[2]);
+    var nbRequests = Integer.parseInt(args[3]);
+    var nbLongs = args.length == 5 ? Integer.parseInt(args[4]) : 16;
+
+    var connected = new CountDownLatch(nbClients);
+    var start = new CountDownLatch(1);
+    var done = new LongAdder();
+    var errors = new LongAdder();
+    var threads = new ArrayList<Thread>(nbClients);
+    var begin = System.nanoTime();
+    for (var i = 0; i < nbClients; i++) {
+      threads.add(Thread.ofVirtual().start(() -> client(server, nbRequests, nbLongs, connected, start, done, errors)));
+    }
+    connected.await();
+    var connectNanos = System.nanoTime() - begin;
+    begin = System.nanoTime();
+    start.countDown();
+    for (var thread : threads) {
+      thread.join();
+    }
+    var nanos = System.nanoTime() - begin;
+    logger.info("Benchmark finished");
+    System.out.printf("%d clients connected in %d ms%n", nbClients, connectNanos / 1_000_000);
+    System.out.printf("%d requests of %d longs in %d ms : %,.0f requests/s, %d errors%n", done.sum(), nbLongs,
+            nanos / 1_000_000, done.sum() * 1e9 / nanos, errors.sum());
+  }
+
+  private static void usage() {
+    System.out.println("Usage : LongSumBenchmark host port nbClients nbRequests [nbLongs]");
+  }
+}
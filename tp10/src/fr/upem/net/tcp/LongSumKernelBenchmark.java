@@ -0,0 +1,107 @@
+package fr.upem.net.tcp;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the versions of LongSumKernel on heap and direct payloads of 1K, 1M
+ * and 100M longs.
+ * <p>
+ * The servers sum a request chunk by chunk, so a payload larger than
+ * MAX_BUFFER_LONGS is summed as several passes over a buffer of
+ * MAX_BUFFER_LONGS longs, as it would be by a server. Each measure is preceded
+ * by warm-up rounds so that the kernels are compiled by C2.
+ * <p>
+ * The vector kernel is the Vector API one when the JVM runs with --add-modules
+ * jdk.incubator.vector, and the getLong loop otherwise, as the first line of the
+ * output says.
+ * <p>
+ * The names of the kernels to measure (scalar, view, vector) can be given as
+ * arguments, so that each one can be measured in its own JVM without the
+ * profile of the others.
+ */
+public class LongSumKernelBenchmark {
+
+  private interface Kernel {
+    long sum(ByteBuffer buffer, int nbLongs);
+  }
+
+  private static final int MAX_BUFFER_LONGS = 1 << 20;
+  private static final long MIN_MEASURED_LONGS = 200_000_000L;
+  private static final int WARMUP_ROUNDS = 3;
+
+  private static long run(Kernel kernel, ByteBuffer payload, long nbLongs) {
+    var chunkLongs = payload.capacity() / Long.BYTES;
+    var sum = 0L;
+    for (var done = 0L; done < nbLongs; ) {
+      var length = (int) Math.min(chunkLongs, nbLongs - done);
+      payload.clear();
+      sum += kernel.sum(payload, length);
+      done += length;
+    }
+    return sum;
+  }
+
+  /**
+   * @return the number of longs summed per nanosecond
+   */
+  private static double measure(Kernel kernel, ByteBuffer payload, long nbLongs, long expected) {
+    var repeat = Math.max(1, MIN_MEASURED_LONGS / nbLongs);
+    for (var round = 0; round < WARMUP_ROUNDS; round++) {
+      for (var i = 0; i < repeat; i++) {
+        check(run(kernel, payload, nbLongs), expected);
+      }
+    }
+    var begin = System.nanoTime();
+    for (var i = 0; i < repeat; i++) {
+      check(run(kernel, payload, nbLongs), expected);
+    }
+    return (double) (nbLongs * repeat) / (System.nanoTime() - begin);
+  }
+
+  private static void check(long sum, long expected) {
+    if (sum != expected) {
+      throw new AssertionError("wrong sum " + sum + " instead of " + expected);
+    }
+  }
+
+  public static void main(String[] args) {
+    var kernels = new LinkedHashMap<String, Kernel>();
+    kernels.put("scalar", LongSumKernel::scalarSum);
+    kernels.put("view", LongSumKernel::viewSum);
+    kernels.put("vector", LongSumKernel::vectorSum);
+    if (args.length != 0) {
+      kernels.keySet().retainAll(List.of(args));
+    }
+    if (kernels.containsKey("vector")) {
+      System.out.println(LongSumKernel.isVectorized()
+              ? "vector: Vector API (jdk.incubator.vector), heap buffers only"
+              : "vector: jdk.incubator.vector absent, measures the scalar fallback (run with --add-modules jdk.incubator.vector)");
+    }
+    var random = new Random(0);
+    long[] sizes = {1_000, 1_000_000, 100_000_000};
+    for (var direct : new boolean[]{false, true}) {
+      for (var nbLongs : sizes) {
+        var bufferLongs = (int) Math.min(nbLongs, MAX_BUFFER_LONGS);
+        var payload = direct ? ByteBuffer.allocateDirect(bufferLongs * Long.BYTES)
+                : ByteBuffer.allocate(bufferLongs * Long.BYTES);
+        while (payload.hasRemaining()) {
+          payload.putLong(random.nextLong());
+        }
+        var expected = run(LongSumKernel::scalarSum, payload, nbLongs);
+        var line = new StringBuilder(String.format("%-6s %,12d longs:", direct ? "direct" : "heap", nbLongs));
+        for (Map.Entry<String, Kernel> entry : kernels.entrySet()) {
+          if (direct && entry.getKey().equals("vector")) {
+            line.append(" vector n/a"); // the Vector API kernel reads the array of heap buffers only
+            continue;
+          }
+          line.append(String.format(" %s %.2f", entry.getKey(), measure(entry.getValue(), payload, nbLongs, expected)));
+        }
+        System.out.println(line.append(" longs/ns"));
+      }
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package fr.upem.net.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Stress test of a running LongSum server.
+ * <p>
+ * nbClients clients (64 by default) send their requests at the same time, each
+ * request having a random number of longs so that the servers must handle
+ * requests of different sizes concurrently. Every sum is checked and the
+ * program exits with status 1 if one of them is wrong or if a client fails.
+ */
+public class LongSumStressTest {
+
+  private static final Logger logger = Logger.getLogger(LongSumStressTest.class.getName());
+  private static final int DEFAULT_CLIENTS = 64;
+  private static final int NB_REQUESTS = 500;
+  private static final int MAX_LONGS = 4096;
+
+  private static void client(InetSocketAddress server, CountDownLatch start, LongAdder checked, LongAdder errors) {
+    try (var sc = SocketChannel.open(server)) {
+      start.await();
+      var random = ThreadLocalRandom.current();
+      var request = ByteBuffer.allocate(Integer.BYTES + MAX_LONGS * Long.BYTES);
+      var answer = ByteBuffer.allocate(Long.BYTES);
+      for (var i = 0; i < NB_REQUESTS; i++) {
+        var nbLongs = random.nextInt(MAX_LONGS + 1);
+        request.clear();
+        request.putInt(nbLongs);
+        var sum = 0L;
+        for (var j = 0; j < nbLongs; j++) {
+          var value = random.nextLong();
+          request.putLong(value);
+          sum += value;
+        }
+        request.flip();
+        while (request.hasRemaining()) {
+          sc.write(request);
+        }
+        answer.clear();
+        if (!LongSumBenchmark.readFully(sc, answer)) {
+          logger.warning("Connection closed by the server after " + i + " requests");
+          errors.increment();
+          return;
+        }
+        if (answer.flip().getLong() != sum) {
+          logger.warning("Wrong sum for a request of " + nbLongs + " longs");
+          errors.increment();
+        }
+        checked.increment();
+      }
+    } catch (IOException e) {
+      logger.warning("Client failed: " + e);
+      errors.increment();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    if (args.length != 2 && args.length != 3) {
+      usage();
+      return;
+    }
+    var server = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+    var nbClients = args.length == 3 ? Integer.parseInt(args[2]) : DEFAULT_CLIENTS;
+
+    var start = new CountDownLatch(1);
+    var checked = new LongAdder();
+    var errors = new LongAdder();
+    var threads = new ArrayList<Thread>(nbClients);
+    for (var i = 0; i < nbClients; i++) {
+      threads.add(Thread.ofPlatform().start(() -> client(server, start, checked, errors)));
+    }
+    start.countDown();
+    for (var thread : threads) {
+      thread.join();
+    }
+    System.out.printf("%d clients, %d sums checked, %d errors%n", nbClients, checked.sum(), errors.sum());
+    if (errors.sum() != 0 || checked.sum() != (long) nbClients * NB_REQUESTS) {
+      System.exit(1);
+    }
+  }
+
+  private static void usage() {
+    System.out.println("Usage : LongSumStressTest host port [nbClients]");
+  }
+}
@@ -0,0 +1,59 @@
+package fr.upem.net.tcp;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The summation of LongSumKernel written with the incubating Vector API.
+ * <p>
+ * Compiling and running this class requires --add-modules jdk.incubator.vector.
+ * It is only loaded by LongSumKernel once the module has been found,
+ * so the other classes run unchanged without it.
+ * <p>
+ * The bytes of the payload are loaded from the array of a heap buffer a vector
+ * at a time and reinterpreted as longs in the native order, so on a little-endian
+ * machine the bytes of each lane are reversed before being added to the lanes
+ * of an accumulator, reduced once at the end.
+ */
+final class LongSumVectorKernel {
+
+  private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED;
+  private static final VectorSpecies<Long> LONG_SPECIES = LongVector.SPECIES_PREFERRED;
+  private static final boolean REVERSE = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+  private LongSumVectorKernel() {
+    throw new AssertionError();
+  }
+
+  /**
+   * @param buffer a heap buffer in read mode with at least nbLongs * Long.BYTES remaining bytes
+   * @param nbLongs
+   * @return the sum of the longs
+   */
+  static long sum(ByteBuffer buffer, int nbLongs) {
+    var array = buffer.array();
+    var start = buffer.arrayOffset() + buffer.position();
+    var length = nbLongs * Long.BYTES;
+    var upperBound = start + BYTE_SPECIES.loopBound(length);
+    var accumulator = LongVector.zero(LONG_SPECIES);
+    var i = start;
+    for (; i < upperBound; i += BYTE_SPECIES.length()) {
+      var longs = (LongVector) ByteVector.fromArray(BYTE_SPECIES, array, i).reinterpretAsLongs();
+      if (REVERSE) {
+        longs = longs.lanewise(VectorOperators.REVERSE_BYTES);
+      }
+      accumulator = accumulator.add(longs);
+    }
+    var sum = accumulator.reduceLanes(VectorOperators.ADD);
+    for (; i < start + length; i += Long.BYTES) {
+      sum += buffer.getLong(i - buffer.arrayOffset());
+    }
+    buffer.position(buffer.position() + length);
+    return sum;
+  }
+}
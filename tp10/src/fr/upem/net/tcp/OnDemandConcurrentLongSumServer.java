@@ -15,8 +15,6 @@ public class OnDemandConcurrentLongSumServer {
   private static final int BUFFER_SIZE = 1024;
   private final ServerSocketChannel serverSocketChannel;
 
-  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-
   public OnDemandConcurrentLongSumServer(int port) throws IOException {
     serverSocketChannel = ServerSocketChannel.open();
     serverSocketChannel.bind(new InetSocketAddress(port));
@@ -54,7 +52,7 @@ public class OnDemandConcurrentLongSumServer {
    * @throws IOException
    */
   private void serve(SocketChannel sc) throws IOException {
-
+    var buffer = ByteBuffer.allocate(BUFFER_SIZE);
     while (true) {
       buffer.clear();
       buffer.limit(Integer.BYTES);
@@ -66,15 +64,21 @@ public class OnDemandConcurrentLongSumServer {
       if (nb < 0){
         return;
       }
-      buffer.clear();
-      buffer.limit(nb * Long.BYTES);
-      if (!readFully(sc, buffer)){
-        return;
-      }
-      buffer.flip();
+      // the operands are summed chunk by chunk, whatever the size of the request
+      var remaining = (long) nb * Long.BYTES;
       long sum = 0L;
-      while (buffer.hasRemaining()){
-        sum += buffer.getLong();
+      buffer.clear();
+      while (remaining > 0){
+        buffer.limit((int) Math.min(buffer.capacity(), remaining));
+        if (sc.read(buffer) == -1){
+          logger.info("Input stream closed");
+          return;
+        }
+        buffer.flip();
+        var nbLongs = buffer.remaining() / Long.BYTES;
+        sum += LongSumKernel.sum(buffer, nbLongs);
+        remaining -= nbLongs * Long.BYTES;
+        buffer.compact();
       }
 
       logger.info("send " + sum);
@@ -0,0 +1,146 @@
+package fr.upem.net.tcp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * LongSum server with one virtual thread per client.
+ * <p>
+ * The code keeps the blocking style of the other servers, but a blocked virtual
+ * thread does not hold a platform thread, so the number of clients is only
+ * bounded by the admission semaphore and the memory of their buffers.
+ */
+public class VirtualThreadLongSumServer {
+
+  private static final Logger logger = Logger.getLogger(VirtualThreadLongSumServer.class.getName());
+  private static final int BUFFER_SIZE = 1024;
+  private static final int BACKLOG = 1024;
+  private final ServerSocketChannel serverSocketChannel;
+  private final Semaphore semaphore;
+
+  public VirtualThreadLongSumServer(int port, int maxClient) throws IOException {
+    if (maxClient < 1){
+      throw new IllegalArgumentException("maxClient < 1 is not accepted");
+    }
+    serverSocketChannel = ServerSocketChannel.open();
+    serverSocketChannel.bind(new InetSocketAddress(port), BACKLOG);
+    logger.info(this.getClass().getName() + " starts on port " + port);
+    semaphore = new Semaphore(maxClient);
+  }
+
+  /**
+   * Server main loop: a client is only accepted once a permit is available
+   *
+   * @throws IOException
+   */
+
+  public void launch() throws IOException, InterruptedException {
+    logger.info("Server started");
+    while (!Thread.interrupted()) {
+      semaphore.acquire();
+      SocketChannel client;
+      try {
+        client = serverSocketChannel.accept();
+      } catch (IOException ioe) {
+        semaphore.release();
+        throw ioe;
+      }
+      Thread.ofVirtual().start(() -> {
+        try {
+          logger.fine("Connection accepted from " + client.getRemoteAddress());
+          serve(client);
+        } catch (IOException ioe) {
+          logger.log(Level.INFO, "Connection terminated with client by IOException", ioe.getCause());
+        } finally {
+          silentlyClose(client);
+          semaphore.release();
+        }
+      });
+    }
+  }
+
+  /**
+   * Treat the connection sc applying the protocol. All IOException are thrown
+   *
+   * @param sc
+   * @throws IOException
+   */
+  private void serve(SocketChannel sc) throws IOException {
+    var buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    while (true) {
+      buffer.clear();
+      buffer.limit(Integer.BYTES);
+      if (!readFully(sc, buffer)){
+        return;
+      }
+      buffer.flip();
+      var nb = buffer.getInt();
+      if (nb < 0){
+        return;
+      }
+      // the operands are summed chunk by chunk, whatever the size of the request
+      var remaining = (long) nb * Long.BYTES;
+      long sum = 0L;
+      buffer.clear();
+      while (remaining > 0){
+        buffer.limit((int) Math.min(buffer.capacity(), remaining));
+        if (sc.read(buffer) == -1){
+          logger.info("Input stream closed");
+          return;
+        }
+        buffer.flip();
+        var nbLongs = buffer.remaining() / Long.BYTES;
+        sum += LongSumKernel.sum(buffer, nbLongs);
+        remaining -= nbLongs * Long.BYTES;
+        buffer.compact();
+      }
+
+      var result = sum;
+      logger.fine(() -> "send " + result);
+
+      buffer.clear();
+      buffer.putLong(sum);
+      buffer.flip();
+
+      sc.write(buffer);
+    }
+  }
+
+  /**
+   * Close a SocketChannel while ignoring IOExecption
+   *
+   * @param sc
+   */
+
+  private void silentlyClose(Closeable sc) {
+    if (sc != null) {
+      try {
+        sc.close();
+      } catch (IOException e) {
+        // Do nothing
+      }
+    }
+  }
+
+  static boolean readFully(SocketChannel sc, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (sc.read(buffer) == -1) {
+        logger.fine("Input stream closed");
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static void main(String[] args) throws NumberFormatException, IOException, InterruptedException {
+    var server = new VirtualThreadLongSumServer(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+    server.launch();
+  }
+}
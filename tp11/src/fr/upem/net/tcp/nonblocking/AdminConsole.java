@@ -0,0 +1,186 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Console of a nonblocking server, reading its commands on the standard input:
+ * <ul>
+ *   <li>INFO: the number of connections of each selector loop and the bytes they
+ *   buffer, followed by the lines added by the server with addInfo,</li>
+ *   <li>CONNECTIONS: the same with a line per connection,</li>
+ *   <li>SHUTDOWN: stops accepting, lets every connection send what it has
+ *   pending, then closes it,</li>
+ *   <li>SHUTDOWNNOW: closes every connection at once,</li>
+ *   <li>STATS: the snapshot of the SelectorStats of the server, with its
+ *   wake-ups per second since the previous snapshot,</li>
+ *   <li>TRACE [n]: the n (by default 100, at most the size of the ring) most
+ *   recent events of the trace of the server, when tracing is enabled.</li>
+ * </ul>
+ * The console thread only submits commands to the loops through their
+ * LoopControl and waits for the answers, it never touches a key itself.
+ */
+final class AdminConsole {
+  private static final long ANSWER_TIMEOUT = 1_000; // milliseconds
+  private static final int TRACE_EVENTS = 100;
+  private static final Logger logger = Logger.getLogger(AdminConsole.class.getName());
+
+  private final String name;
+  private final Trace trace;
+  private final SelectorStats stats;
+  private final List<LoopControl> loops = new CopyOnWriteArrayList<>();
+  private final List<Supplier<String>> serverInfo = new CopyOnWriteArrayList<>();
+  private volatile Runnable stopAccepting = () -> {};
+
+  /**
+   * @param name the name of the server in the answers
+   * @param trace the trace of the server, shared by its loops
+   * @param stats the metrics of the loops of the server
+   */
+  AdminConsole(String name, Trace trace, SelectorStats stats) {
+    this.name = name;
+    this.trace = trace;
+    this.stats = stats;
+  }
+
+  /**
+   * Registers a selector loop, usually by launch
+   *
+   * @param loop
+   */
+  void addLoop(LoopControl loop) {
+    loops.add(loop);
+  }
+
+  /**
+   * Adds a line to the answers of INFO and CONNECTIONS, about what the loops
+   * share, like a BufferPool. info is called by the console thread, it must only
+   * read thread-safe counters.
+   *
+   * @param info
+   */
+  void addInfo(Supplier<String> info) {
+    serverInfo.add(info);
+  }
+
+  /**
+   * @param stopAccepting run by the console thread on shutdown, when the clients
+   *                      are accepted outside of the selector loops
+   */
+  void onShutdown(Runnable stopAccepting) {
+    this.stopAccepting = stopAccepting;
+  }
+
+  /**
+   * Starts a daemon thread running the commands read on the standard input
+   */
+  void start() {
+    Thread.ofPlatform().daemon().name(name + "-console").start(() -> {
+      try (var scanner = new Scanner(System.in)) {
+        while (scanner.hasNextLine()) {
+          logger.info(execute(scanner.nextLine()));
+        }
+      }
+    });
+  }
+
+  /**
+   * Runs a command on every loop. Can be called from any thread.
+   *
+   * @param command
+   * @return the answer of the command
+   */
+  String execute(String command) {
+    var words = command.strip().split("\\s+");
+    return switch (words[0].toUpperCase()) {
+      case "INFO" -> ask(loop -> loop.info(false)) + serverInfo();
+      case "CONNECTIONS" -> ask(loop -> loop.info(true)) + serverInfo();
+      case "SHUTDOWN" -> {
+        stopAccepting.run();
+        loops.forEach(loop -> loop.execute(loop::shutdown));
+        yield name + " is shutting down, connections are drained";
+      }
+      case "SHUTDOWNNOW" -> {
+        stopAccepting.run();
+        loops.forEach(loop -> loop.execute(loop::shutdownNow));
+        yield name + " is shut down";
+      }
+      case "STATS" -> stats.snapshot();
+      case "TRACE" -> {
+        try {
+          var count = words.length > 1 ? Integer.parseInt(words[1]) : TRACE_EVENTS;
+          if (count < 0) {
+            yield "Invalid number of events " + words[1];
+          }
+          yield dumpTrace(Math.min(count, trace.capacity()));
+        } catch (NumberFormatException e) {
+          yield "Invalid number of events " + words[1];
+        }
+      }
+      default -> "Unknown command " + command + " (INFO, CONNECTIONS, SHUTDOWN, SHUTDOWNNOW, STATS, TRACE [n])";
+    };
+  }
+
+  private String serverInfo() {
+    var builder = new StringBuilder();
+    for (var info : serverInfo) {
+      builder.append(info.get()).append('\n');
+    }
+    return builder.toString();
+  }
+
+  /**
+   * The trace is shared by the loops and written without locks, so it is dumped
+   * by the console thread itself rather than by a command of a loop.
+   */
+  private String dumpTrace(int count) {
+    if (!Trace.ENABLED) {
+      return name + ": tracing is disabled (-Dfr.upem.net.trace=true)";
+    }
+    var out = new ByteArrayOutputStream();
+    try (var printer = new PrintStream(out, false, StandardCharsets.UTF_8)) {
+      trace.dump(printer, count);
+    }
+    return out.toString(StandardCharsets.UTF_8);
+  }
+
+  private String ask(Function<LoopControl, String> question) {
+    var asked = List.copyOf(loops);
+    var answers = asked.stream().map(loop -> {
+      var answer = new CompletableFuture<String>();
+      loop.execute(() -> {
+        try {
+          answer.complete(question.apply(loop));
+        } catch (RuntimeException e) {
+          answer.completeExceptionally(e);
+        }
+      });
+      return answer;
+    }).toList();
+    var builder = new StringBuilder(name).append('\n');
+    for (var i = 0; i < answers.size(); i++) {
+      try {
+        builder.append(answers.get(i).get(ANSWER_TIMEOUT, TimeUnit.MILLISECONDS));
+      } catch (TimeoutException e) {
+        builder.append(asked.get(i).name()).append(": not running\n");
+      } catch (ExecutionException e) {
+        builder.append(asked.get(i).name()).append(": ").append(e.getCause()).append('\n');
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return builder.toString();
+  }
+}
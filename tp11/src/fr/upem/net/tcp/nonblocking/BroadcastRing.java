@@ -0,0 +1,132 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Append-only ring of broadcast frames shared by all the connections of a
+ * selector.
+ * <p>
+ * A message is encoded once into the ring; each connection only holds a cursor,
+ * the absolute offset of the next byte it has to send. Positions are counted
+ * from the creation of the ring and never wrap, the offset inside the ring being
+ * position % capacity. The bytes of a connection lagging by more than the
+ * capacity have been overwritten, so the outbound limits of the connections
+ * must stay below the capacity.
+ * <p>
+ * The pending bytes of a connection are sent without copy, each contiguous range
+ * of the ring being a segment of a gathering write: a connection sends all its
+ * pending frames with one write, even when they wrap around the end of the ring
+ * or when some frames in the middle have been dropped.
+ * <p>
+ * The ring is confined to the thread of its selector.
+ */
+class BroadcastRing {
+  private final ByteBuffer ring; // used to append frames
+  private final ByteBuffer[] segments; // read-only views of the ring, the segments of the next gathering write
+  private int nbSegments;
+  private final int capacity;
+  private long head; // absolute position of the next byte appended
+
+  static final int DEFAULT_MAX_SEGMENTS = 4; // two ranges, each one possibly wrapping around the end of the ring
+
+  /**
+   * @param capacity the size of the ring in bytes, must be a multiple of Integer.BYTES
+   * @param maxSegments the maximum number of segments of a gathering write
+   */
+  BroadcastRing(int capacity, int maxSegments) {
+    if (capacity < Integer.BYTES || capacity % Integer.BYTES != 0) {
+      throw new IllegalArgumentException("capacity must be a positive multiple of " + Integer.BYTES);
+    }
+    if (maxSegments < 1) {
+      throw new IllegalArgumentException("maxSegments must be positive");
+    }
+    this.capacity = capacity;
+    this.ring = ByteBuffer.allocateDirect(capacity);
+    this.segments = new ByteBuffer[maxSegments];
+    for (var i = 0; i < maxSegments; i++) {
+      segments[i] = ring.asReadOnlyBuffer();
+    }
+  }
+
+  /**
+   * @param capacity the size of the ring in bytes, must be a multiple of Integer.BYTES
+   */
+  BroadcastRing(int capacity) {
+    this(capacity, DEFAULT_MAX_SEGMENTS);
+  }
+
+  /**
+   * Encodes msg at the head of the ring, overwriting the oldest frame if the ring
+   * is full. Since head is always a multiple of Integer.BYTES, the frame never
+   * straddles the end of the ring.
+   *
+   * @param msg
+   */
+  void appendInt(int msg) {
+    ring.putInt(offset(head), msg);
+    head += Integer.BYTES;
+  }
+
+  /**
+   * @return the absolute position just after the last frame appended
+   */
+  long head() {
+    return head;
+  }
+
+  /**
+   * @return the absolute position of the oldest frame still in the ring
+   */
+  long tail() {
+    return Math.max(0, head - capacity);
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Adds the bytes between from and to to the next gathering write, as two
+   * segments if they wrap around the end of the ring. The ranges must be added
+   * in the order of the stream.
+   *
+   * @param from an absolute position between tail() and head()
+   * @param to an absolute position between from and head()
+   * @return the number of bytes added, less than to - from if all the segments are used
+   */
+  long addRange(long from, long to) {
+    var added = 0L;
+    while (from + added < to && nbSegments < segments.length) {
+      var start = offset(from + added);
+      var end = (int) Math.min(capacity, start + (to - from - added));
+      segments[nbSegments++].limit(end).position(start);
+      added += end - start;
+    }
+    return added;
+  }
+
+  /**
+   * Writes on sc, with a single gathering write, as many bytes as possible of the
+   * ranges added since the last call, and forgets these ranges.
+   *
+   * @param sc
+   * @return the number of bytes written
+   * @throws IOException
+   */
+  long flushTo(SocketChannel sc) throws IOException {
+    if (nbSegments == 0) {
+      return 0;
+    }
+    try {
+      return sc.write(segments, 0, nbSegments);
+    } finally {
+      nbSegments = 0;
+    }
+  }
+
+  private int offset(long position) {
+    return (int) (position % capacity);
+  }
+}
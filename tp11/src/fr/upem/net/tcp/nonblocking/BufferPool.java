@@ -0,0 +1,115 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct ByteBuffers of a fixed size, carved out of large direct slabs.
+ * <p>
+ * A Context borrows a buffer only while it has pending bytes and gives it back
+ * once the buffer is drained, so idle connections cost no buffer memory. When no
+ * buffer is free, a new slab is allocated (a miss). The pool can be shared by
+ * several reactor threads.
+ */
+class BufferPool {
+  private final int bufferSize;
+  private final int buffersPerSlab;
+  private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicInteger inUse = new AtomicInteger();
+  private final AtomicInteger highWaterMark = new AtomicInteger();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param bufferSize the capacity of each buffer lent by the pool
+   * @param buffersPerSlab the number of buffers carved out of each slab
+   */
+  BufferPool(int bufferSize, int buffersPerSlab) {
+    if (bufferSize < 1 || buffersPerSlab < 1) {
+      throw new IllegalArgumentException("bufferSize and buffersPerSlab must be positive");
+    }
+    this.bufferSize = bufferSize;
+    this.buffersPerSlab = buffersPerSlab;
+    free.add(allocateSlab());
+  }
+
+  /**
+   * @return a cleared buffer of bufferSize bytes in write-mode
+   */
+  ByteBuffer acquire() {
+    var buffer = free.poll();
+    if (buffer != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      buffer = allocateSlab();
+    }
+    var used = inUse.incrementAndGet();
+    highWaterMark.accumulateAndGet(used, Math::max);
+    return buffer;
+  }
+
+  /**
+   * Gives back a buffer obtained by acquire. The caller must not use it afterwards.
+   *
+   * @param buffer
+   */
+  void release(ByteBuffer buffer) {
+    buffer.clear();
+    inUse.decrementAndGet();
+    free.add(buffer);
+  }
+
+  /**
+   * Allocates a new slab, adds all its buffers but one to the free list and
+   * returns the remaining one.
+   */
+  private ByteBuffer allocateSlab() {
+    var slab = ByteBuffer.allocateDirect(bufferSize * buffersPerSlab);
+    ByteBuffer last = null;
+    for (var i = 0; i < buffersPerSlab; i++) {
+      last = slab.slice(i * bufferSize, bufferSize);
+      if (i < buffersPerSlab - 1) {
+        free.add(last);
+      }
+    }
+    size.addAndGet(buffersPerSlab);
+    return last;
+  }
+
+  int bufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * @return the number of buffers owned by the pool, lent or not
+   */
+  int size() {
+    return size.get();
+  }
+
+  int inUse() {
+    return inUse.get();
+  }
+
+  int highWaterMark() {
+    return highWaterMark.get();
+  }
+
+  long hits() {
+    return hits.get();
+  }
+
+  long misses() {
+    return misses.get();
+  }
+
+  @Override
+  public String toString() {
+    return "BufferPool[size=" + size() + ", inUse=" + inUse() + ", highWaterMark=" + highWaterMark()
+            + ", hits=" + hits() + ", misses=" + misses() + "]";
+  }
+}
@@ -0,0 +1,102 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of positive longs with log-linear buckets, in the spirit of
+ * HdrHistogram: each power of two is split into SUB_BUCKETS buckets, so a value
+ * is known with a relative error below 1/SUB_BUCKETS whatever its magnitude.
+ * <p>
+ * There must be a single writer, the thread of a selector: record does not
+ * allocate nor synchronize, it only publishes its updates so that any thread
+ * can read the histogram while it is being recorded.
+ */
+final class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int NB_BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NB_BUCKETS);
+  private final AtomicLongArray totals = new AtomicLongArray(3); // count, sum, max
+
+  /**
+   * Records value, a negative value is recorded as 0. Must only be called by the
+   * writer thread.
+   *
+   * @param value
+   */
+  void record(long value) {
+    value = Math.max(0, value);
+    var index = index(value);
+    counts.setRelease(index, counts.getPlain(index) + 1);
+    totals.setRelease(0, totals.getPlain(0) + 1);
+    totals.setRelease(1, totals.getPlain(1) + value);
+    if (value > totals.getPlain(2)) {
+      totals.setRelease(2, value);
+    }
+  }
+
+  long count() {
+    return totals.getAcquire(0);
+  }
+
+  long max() {
+    return totals.getAcquire(2);
+  }
+
+  double mean() {
+    var count = count();
+    return count == 0 ? 0 : (double) totals.getAcquire(1) / count;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the highest value of the bucket holding the given percentile, 0 if
+   *         nothing has been recorded
+   */
+  long percentile(double percentile) {
+    var snapshot = new long[NB_BUCKETS];
+    var count = 0L;
+    for (var i = 0; i < NB_BUCKETS; i++) {
+      snapshot[i] = counts.getAcquire(i);
+      count += snapshot[i];
+    }
+    var rank = (long) Math.ceil(percentile / 100 * count);
+    var seen = 0L;
+    for (var i = 0; i < NB_BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= Math.max(1, rank)) {
+        return Math.min(highestValue(i), max());
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @param unit the value of one unit, the recorded values are divided by unit
+   * @return count, mean and the main percentiles on one line
+   */
+  String summary(double unit) {
+    return String.format("count=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f", count(),
+            mean() / unit, percentile(50) / unit, percentile(90) / unit, percentile(99) / unit,
+            percentile(99.9) / unit, max() / unit);
+  }
+
+  private static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    var shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  private static long highestValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    var shift = index / SUB_BUCKETS - 1;
+    var lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
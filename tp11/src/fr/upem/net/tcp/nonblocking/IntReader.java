@@ -0,0 +1,64 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reader of a big-endian int.
+ * <p>
+ * value gives the int without boxing it. When the int is not split between two
+ * buffers it is read in place, otherwise its bytes are gathered in a small
+ * internal buffer.
+ */
+final class IntReader implements Reader<Integer> {
+
+  private enum State {
+    DONE, WAITING
+  }
+
+  private final ByteBuffer internalBuffer = ByteBuffer.allocate(Integer.BYTES);
+  private State state = State.WAITING;
+  private int value;
+
+  @Override
+  public ProcessStatus process(ByteBuffer buffer) {
+    if (state == State.DONE) {
+      throw new IllegalStateException();
+    }
+    if (internalBuffer.position() == 0 && buffer.remaining() >= Integer.BYTES) {
+      value = buffer.getInt();
+      state = State.DONE;
+      return ProcessStatus.DONE;
+    }
+    while (internalBuffer.hasRemaining() && buffer.hasRemaining()) {
+      internalBuffer.put(buffer.get());
+    }
+    if (internalBuffer.hasRemaining()) {
+      return ProcessStatus.REFILL;
+    }
+    value = internalBuffer.getInt(0);
+    state = State.DONE;
+    return ProcessStatus.DONE;
+  }
+
+  /**
+   * @return the int read
+   * @throws IllegalStateException if process has not returned DONE
+   */
+  int value() {
+    if (state != State.DONE) {
+      throw new IllegalStateException();
+    }
+    return value;
+  }
+
+  @Override
+  public Integer get() {
+    return value();
+  }
+
+  @Override
+  public void reset() {
+    state = State.WAITING;
+    internalBuffer.clear();
+  }
+}
@@ -0,0 +1,64 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reader of a big-endian long.
+ * <p>
+ * value gives the long without boxing it. When the long is not split between
+ * two buffers it is read in place, otherwise its bytes are gathered in a small
+ * internal buffer.
+ */
+final class LongReader implements Reader<Long> {
+
+  private enum State {
+    DONE, WAITING
+  }
+
+  private final ByteBuffer internalBuffer = ByteBuffer.allocate(Long.BYTES);
+  private State state = State.WAITING;
+  private long value;
+
+  @Override
+  public ProcessStatus process(ByteBuffer buffer) {
+    if (state == State.DONE) {
+      throw new IllegalStateException();
+    }
+    if (internalBuffer.position() == 0 && buffer.remaining() >= Long.BYTES) {
+      value = buffer.getLong();
+      state = State.DONE;
+      return ProcessStatus.DONE;
+    }
+    while (internalBuffer.hasRemaining() && buffer.hasRemaining()) {
+      internalBuffer.put(buffer.get());
+    }
+    if (internalBuffer.hasRemaining()) {
+      return ProcessStatus.REFILL;
+    }
+    value = internalBuffer.getLong(0);
+    state = State.DONE;
+    return ProcessStatus.DONE;
+  }
+
+  /**
+   * @return the long read
+   * @throws IllegalStateException if process has not returned DONE
+   */
+  long value() {
+    if (state != State.DONE) {
+      throw new IllegalStateException();
+    }
+    return value;
+  }
+
+  @Override
+  public Long get() {
+    return value();
+  }
+
+  @Override
+  public void reset() {
+    state = State.WAITING;
+    internalBuffer.clear();
+  }
+}
@@ -0,0 +1,177 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The commands and the shutdown state of a selector loop.
+ * <p>
+ * Other threads never touch the keys of the loop: they submit commands with
+ * execute, which queues them and wakes the selector up, and the loop runs them
+ * on its own thread after each select. All the other methods must be called on
+ * the thread of the loop.
+ */
+final class LoopControl {
+
+  /**
+   * What the commands see of the Context attached to a client key.
+   */
+  interface Connection {
+    /**
+     * @return the number of bytes received and not processed yet
+     */
+    int inputBytes();
+
+    /**
+     * @return the number of bytes waiting to be sent
+     */
+    long outputBytes();
+
+    /**
+     * Stops reading, sends what is pending, then closes the connection.
+     */
+    void drain();
+
+    void silentlyClose();
+  }
+
+  private final String name;
+  private final Selector selector;
+  private final ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<>();
+  private boolean draining;
+  private boolean stopped;
+
+  /**
+   * @param name the name of the loop in the answers of the commands
+   * @param selector the selector of the loop
+   */
+  LoopControl(String name, Selector selector) {
+    this.name = name;
+    this.selector = selector;
+  }
+
+  String name() {
+    return name;
+  }
+
+  /**
+   * Runs command on the thread of the loop. Can be called from any thread.
+   *
+   * @param command
+   */
+  void execute(Runnable command) {
+    commands.add(command);
+    selector.wakeup();
+  }
+
+  /**
+   * Runs the commands submitted since the previous call
+   */
+  void runCommands() {
+    Runnable command;
+    while ((command = commands.poll()) != null) {
+      command.run();
+    }
+  }
+
+  /**
+   * @return false once shutdownNow has been called, or once shutdown has been
+   *         called and every connection has been drained
+   */
+  boolean isRunning() {
+    if (stopped) {
+      return false;
+    }
+    if (!draining) {
+      return true;
+    }
+    for (var key : selector.keys()) {
+      if (key.isValid()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return false once a shutdown has started, new clients must then be closed
+   */
+  boolean isAccepting() {
+    return !draining && !stopped;
+  }
+
+  /**
+   * Stops accepting and drains every connection. The loop stops once they are
+   * all closed.
+   */
+  void shutdown() {
+    draining = true;
+    for (var key : selector.keys()) {
+      if (!key.isValid()) {
+        continue;
+      }
+      if (key.attachment() instanceof Connection connection) {
+        connection.drain();
+      } else {
+        silentlyClose(key); // the ServerSocketChannel of a single-thread loop
+      }
+    }
+  }
+
+  /**
+   * Closes every connection at once and stops the loop.
+   */
+  void shutdownNow() {
+    stopped = true;
+    for (var key : selector.keys()) {
+      if (key.attachment() instanceof Connection connection) {
+        connection.silentlyClose();
+      } else {
+        silentlyClose(key);
+      }
+    }
+  }
+
+  /**
+   * @param perConnection whether to add a line per connection
+   * @return the number of connections of the loop and the bytes they buffer
+   */
+  String info(boolean perConnection) {
+    var details = new StringBuilder();
+    var connections = 0;
+    var inputBytes = 0L;
+    var outputBytes = 0L;
+    for (var key : selector.keys()) {
+      if (key.isValid() && key.attachment() instanceof Connection connection) {
+        connections++;
+        inputBytes += connection.inputBytes();
+        outputBytes += connection.outputBytes();
+        if (perConnection) {
+          details.append("  ").append(remoteAddress(key)).append(" in=").append(connection.inputBytes())
+                  .append(" out=").append(connection.outputBytes()).append('\n');
+        }
+      }
+    }
+    return name + ": " + connections + " connection(s), in=" + inputBytes + " out=" + outputBytes
+            + (draining ? " (draining)" : "") + "\n" + details;
+  }
+
+  private static String remoteAddress(SelectionKey key) {
+    try {
+      return String.valueOf(((SocketChannel) key.channel()).getRemoteAddress());
+    } catch (IOException e) {
+      return "closed";
+    }
+  }
+
+  private static void silentlyClose(SelectionKey key) {
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      // ignore exception
+    }
+  }
+}
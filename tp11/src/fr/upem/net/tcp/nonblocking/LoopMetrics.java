@@ -0,0 +1,113 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Metrics of one selector loop, recorded by the thread of the loop only:
+ * <ul>
+ *   <li>how long select waited before the first key or its return,</li>
+ *   <li>how long the handler of each selected key took,</li>
+ *   <li>the bytes read and written by the handlers,</li>
+ *   <li>the number of keys processed by each select,</li>
+ *   <li>the number of wake-ups.</li>
+ * </ul>
+ * A handler time much larger than the others shows a Context that stalls every
+ * other connection of its loop. Nothing is allocated while recording.
+ */
+final class LoopMetrics {
+
+  private static final double MICROSECOND = 1_000;
+
+  private final String name;
+  private final Histogram selectWait = new Histogram(); // nanoseconds
+  private final Histogram handlerTime = new Histogram(); // nanoseconds
+  private final Histogram bytesRead = new Histogram();
+  private final Histogram bytesWritten = new Histogram();
+  private final Histogram keysPerCycle = new Histogram();
+  private final AtomicLong wakeups = new AtomicLong();
+  private long selectStart;
+  private long keyStart;
+  private int keys; // keys processed since selectStart
+
+  LoopMetrics(String name) {
+    this.name = name;
+  }
+
+  /**
+   * @param keyHandler the treatKey of a server
+   * @return keyHandler recording the time spent on each key, to give to select
+   */
+  Consumer<SelectionKey> measure(Consumer<SelectionKey> keyHandler) {
+    return key -> {
+      startKey();
+      try {
+        keyHandler.accept(key);
+      } finally {
+        handlerTime.record(System.nanoTime() - keyStart);
+      }
+    };
+  }
+
+  /**
+   * Called just before select
+   */
+  void beforeSelect() {
+    selectStart = System.nanoTime();
+    keys = 0;
+  }
+
+  /**
+   * Called when select returns
+   */
+  void afterSelect() {
+    if (keys == 0) {
+      selectWait.record(System.nanoTime() - selectStart);
+    }
+    keysPerCycle.record(keys);
+    wakeups.setRelease(wakeups.getPlain() + 1);
+  }
+
+  private void startKey() {
+    keyStart = System.nanoTime();
+    if (keys++ == 0) {
+      selectWait.record(keyStart - selectStart);
+    }
+  }
+
+  /**
+   * @param bytes the result of a read, ignored if it is not positive
+   */
+  void recordRead(long bytes) {
+    if (bytes > 0) {
+      bytesRead.record(bytes);
+    }
+  }
+
+  /**
+   * @param bytes the result of a write, ignored if it is not positive
+   */
+  void recordWritten(long bytes) {
+    if (bytes > 0) {
+      bytesWritten.record(bytes);
+    }
+  }
+
+  long wakeups() {
+    return wakeups.getAcquire();
+  }
+
+  /**
+   * @return the metrics as text, one line per histogram. Can be called from any
+   *         thread.
+   */
+  String snapshot() {
+    return name + ": wakeups=" + wakeups() + "\n"
+            + "  select wait (us)    " + selectWait.summary(MICROSECOND) + "\n"
+            + "  handler time (us)   " + handlerTime.summary(MICROSECOND) + "\n"
+            + "  bytes read/event    " + bytesRead.summary(1) + "\n"
+            + "  bytes written/event " + bytesWritten.summary(1) + "\n"
+            + "  keys/cycle          " + keysPerCycle.summary(1) + "\n";
+  }
+}
@@ -0,0 +1,97 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits of the outbound queue of each connection and what to do with a slow
+ * consumer that exceeds them.
+ * <p>
+ * The counters can be updated by several reactor threads.
+ */
+class OutboundLimits {
+
+  enum Policy {
+    /**
+     * The oldest pending messages are dropped to make room for the new ones
+     */
+    DROP_OLDEST,
+    /**
+     * The messages arriving while the queue is full are dropped, until the
+     * client has sent what was queued. A client that stays stuck until the
+     * broadcast ring wraps over its queue is disconnected.
+     */
+    DROP_NEWEST,
+    /**
+     * The client is disconnected
+     */
+    DISCONNECT
+  }
+
+  private final int maxBytes;
+  private final int maxMessages;
+  private final Policy policy;
+  private final Map<Policy, LongAdder> droppedMessages = new EnumMap<>(Policy.class);
+  private final Map<Policy, LongAdder> disconnected = new EnumMap<>(Policy.class);
+
+  /**
+   * @param maxBytes the maximum number of pending bytes of a connection
+   * @param maxMessages the maximum number of pending messages of a connection
+   * @param policy what to do when a connection exceeds one of the limits
+   */
+  OutboundLimits(int maxBytes, int maxMessages, Policy policy) {
+    if (maxBytes < 1 || maxMessages < 1) {
+      throw new IllegalArgumentException("limits must be positive");
+    }
+    this.maxBytes = maxBytes;
+    this.maxMessages = maxMessages;
+    this.policy = policy;
+    for (var p : Policy.values()) {
+      droppedMessages.put(p, new LongAdder());
+      disconnected.put(p, new LongAdder());
+    }
+  }
+
+  int maxBytes() {
+    return maxBytes;
+  }
+
+  int maxMessages() {
+    return maxMessages;
+  }
+
+  Policy policy() {
+    return policy;
+  }
+
+  /**
+   * @param frameSize the size of a message in bytes
+   * @return the number of bytes a connection may keep pending for messages of frameSize bytes
+   */
+  int maxPendingBytes(int frameSize) {
+    return Math.min(maxBytes / frameSize, maxMessages) * frameSize;
+  }
+
+  void recordDropped(long messages) {
+    droppedMessages.get(policy).add(messages);
+  }
+
+  void recordDisconnected() {
+    disconnected.get(policy).increment();
+  }
+
+  long droppedMessages(Policy policy) {
+    return droppedMessages.get(policy).sum();
+  }
+
+  long disconnected(Policy policy) {
+    return disconnected.get(policy).sum();
+  }
+
+  @Override
+  public String toString() {
+    return "OutboundLimits[maxBytes=" + maxBytes + ", maxMessages=" + maxMessages + ", policy=" + policy
+            + ", droppedMessages=" + droppedMessages(policy) + ", disconnected=" + disconnected(policy) + "]";
+  }
+}
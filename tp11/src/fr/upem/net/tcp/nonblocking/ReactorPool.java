@@ -0,0 +1,275 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Multi-reactor mode for the nonblocking servers.
+ * <p>
+ * One acceptor thread owns the ServerSocketChannel and hands every accepted
+ * SocketChannel to one of N worker reactors. Each worker owns its own Selector,
+ * so the keys (and the Context attached to them) of a connection are only ever
+ * touched by the thread of its reactor. The server provides its own treatKey
+ * and the factory of its Context, which run unchanged inside each worker loop.
+ */
+class ReactorPool {
+
+  enum Strategy {
+    ROUND_ROBIN, LEAST_LOADED
+  }
+
+  /**
+   * A worker reactor: a Selector, the thread running its loop and the LoopControl
+   * running the commands submitted by other threads.
+   */
+  static class Reactor {
+    private final Selector selector;
+    private final Trace trace;
+    private final LoopMetrics metrics;
+    private final TimingWheel timers;
+    private final Consumer<SelectionKey> keyHandler;
+    private final BiFunction<Reactor, SelectionKey, Object> contextFactory;
+    private final LoopControl control;
+    private volatile int keys; // number of keys, written by the reactor thread only
+    private final AtomicInteger pending = new AtomicInteger(); // channels handed over and not registered yet
+
+    private Reactor(String name, Trace trace, LoopMetrics metrics, TimingWheel timers,
+                    Consumer<SelectionKey> keyHandler, BiFunction<Reactor, SelectionKey, Object> contextFactory)
+            throws IOException {
+      this.selector = Selector.open();
+      this.control = new LoopControl(name, selector);
+      this.trace = trace;
+      this.metrics = metrics;
+      this.timers = timers;
+      this.keyHandler = metrics.measure(keyHandler);
+      this.contextFactory = contextFactory;
+    }
+
+    /**
+     * Runs command on the thread of this reactor. Can be called from any thread.
+     *
+     * @param command
+     */
+    void execute(Runnable command) {
+      control.execute(command);
+    }
+
+    /**
+     * Hands sc to this reactor. The channel is registered and its Context is
+     * created by the reactor thread itself. A client arriving after a shutdown is
+     * closed at once.
+     *
+     * @param sc
+     */
+    void register(SocketChannel sc) {
+      pending.incrementAndGet();
+      execute(() -> {
+        try {
+          accept(sc);
+        } finally {
+          keys = selector.keys().size(); // counted in keys before leaving pending
+          pending.decrementAndGet();
+        }
+      });
+    }
+
+    /**
+     * Registers sc with the selector of this reactor. Must be called on the
+     * thread of this reactor.
+     */
+    private void accept(SocketChannel sc) {
+      if (!control.isAccepting()) {
+        silentlyClose(sc);
+        return;
+      }
+      if (Trace.ENABLED) {
+        trace.record(Trace.ACCEPT, System.identityHashCode(sc), 0);
+      }
+      try {
+        sc.configureBlocking(false);
+        sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        var clientKey = sc.register(selector, SelectionKey.OP_READ);
+        clientKey.attach(contextFactory.apply(this, clientKey));
+      } catch (IOException e) {
+        logger.log(Level.INFO, "Could not register accepted client", e);
+        silentlyClose(sc);
+      }
+    }
+
+    Selector selector() {
+      return selector;
+    }
+
+    /**
+     * @return the idle timers of the connections of this reactor
+     */
+    TimingWheel timers() {
+      return timers;
+    }
+
+    /**
+     * @return the trace of the server, to be recorded by the Contexts of this reactor
+     */
+    Trace trace() {
+      return trace;
+    }
+
+    /**
+     * @return the metrics of this reactor, to be recorded by its Contexts
+     */
+    LoopMetrics metrics() {
+      return metrics;
+    }
+
+    LoopControl control() {
+      return control;
+    }
+
+    /**
+     * @return the number of connections of this reactor, counting the ones handed
+     *         over by register and not registered yet
+     */
+    int load() {
+      return keys + pending.get();
+    }
+
+    private void loop() {
+      while (!Thread.interrupted() && control.isRunning()) {
+        if (Trace.ENABLED) {
+          trace.record(Trace.SELECT_START, 0, 0);
+        }
+        metrics.beforeSelect();
+        try {
+          var selected = selector.select(keyHandler, timers.timeUntilNextTick());
+          metrics.afterSelect();
+          if (Trace.ENABLED) {
+            trace.record(Trace.SELECT_END, 0, selected);
+          }
+        } catch (IOException | UncheckedIOException e) {
+          logger.log(Level.SEVERE, "Reactor stopped", e);
+          return;
+        }
+        control.runCommands();
+        timers.advance();
+        keys = selector.keys().size();
+      }
+      control.runCommands(); // clients registered during the shutdown are closed
+    }
+  }
+
+  private static final Logger logger = Logger.getLogger(ReactorPool.class.getName());
+
+  private final ServerSocketChannel serverSocketChannel;
+  private final AdminConsole console;
+  private final List<Reactor> reactors;
+  private final Strategy strategy;
+  private int next; // used by the acceptor thread only
+
+  /**
+   * @param serverSocketChannel a bound ServerSocketChannel in blocking mode
+   * @param nbReactors the number of worker reactors
+   * @param strategy how accepted clients are dispatched to the reactors
+   * @param trace the trace of the server, shared by the reactors
+   * @param stats the metrics of the server, each reactor records into its own loop
+   * @param console the console of the server, which can shut the reactors down
+   * @param idleTimeout the inactivity timeout of the connections in milliseconds
+   * @param keyHandler the treatKey of the server
+   * @param contextFactory creates the Context attached to a new client key of a reactor
+   * @throws IOException
+   */
+  ReactorPool(ServerSocketChannel serverSocketChannel, int nbReactors, Strategy strategy, Trace trace,
+              SelectorStats stats, AdminConsole console, long idleTimeout, Consumer<SelectionKey> keyHandler,
+              BiFunction<Reactor, SelectionKey, Object> contextFactory) throws IOException {
+    if (nbReactors < 1) {
+      throw new IllegalArgumentException("nbReactors < 1 is not accepted");
+    }
+    this.serverSocketChannel = serverSocketChannel;
+    this.console = console;
+    this.strategy = strategy;
+    var reactors = new ArrayList<Reactor>(nbReactors);
+    for (var i = 0; i < nbReactors; i++) {
+      var name = "reactor-" + i;
+      reactors.add(new Reactor(name, trace, stats.newLoop(name), new TimingWheel(idleTimeout), keyHandler,
+              contextFactory));
+    }
+    this.reactors = List.copyOf(reactors);
+  }
+
+  List<Reactor> reactors() {
+    return reactors;
+  }
+
+  /**
+   * Starts the worker reactors and runs the acceptor loop on the current thread.
+   * A shutdown from the console closes the ServerSocketChannel: the acceptor then
+   * waits for the reactors to be done with their connections and returns.
+   *
+   * @throws IOException
+   */
+  void launch() throws IOException {
+    var threads = new ArrayList<Thread>();
+    for (var i = 0; i < reactors.size(); i++) {
+      var reactor = reactors.get(i);
+      console.addLoop(reactor.control());
+      threads.add(Thread.ofPlatform().name("reactor-" + i).start(reactor::loop));
+    }
+    console.onShutdown(() -> silentlyClose(serverSocketChannel));
+    logger.info("Started " + reactors.size() + " reactors (" + strategy + ")");
+    try {
+      while (!Thread.interrupted()) {
+        var sc = serverSocketChannel.accept();
+        choose().register(sc);
+      }
+    } catch (ClosedByInterruptException e) {
+      throw e;
+    } catch (AsynchronousCloseException e) {
+      logger.info("Stopped accepting, waiting for the reactors");
+      for (var thread : threads) {
+        try {
+          thread.join();
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    } finally {
+      threads.forEach(Thread::interrupt);
+    }
+  }
+
+  private Reactor choose() {
+    return switch (strategy) {
+      case ROUND_ROBIN -> {
+        var reactor = reactors.get(next);
+        next = (next + 1) % reactors.size();
+        yield reactor;
+      }
+      case LEAST_LOADED -> {
+        var best = reactors.get(0);
+        for (var reactor : reactors) {
+          if (reactor.load() < best.load()) {
+            best = reactor;
+          }
+        }
+        yield best;
+      }
+    };
+  }
+
+  private static void silentlyClose(Channel sc) {
+    try {
+      sc.close();
+    } catch (IOException e) {
+      // ignore exception
+    }
+  }
+}
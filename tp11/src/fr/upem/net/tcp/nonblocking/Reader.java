@@ -0,0 +1,58 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental reader of a value of a protocol.
+ * <p>
+ * process consumes the bytes of the value as they arrive, keeping what it has
+ * already read in its own state, so the caller can drop or reuse its buffer
+ * between two calls. Once process has returned DONE, get returns the value until
+ * reset prepares the reader for the next one. A reader is meant to be reused for
+ * all the values of a connection.
+ * <p>
+ * The buffer given to process is in read-mode: the caller flips it once, lets
+ * the readers consume as many values as they can, then compacts it once.
+ *
+ * @param <T> the type of the values read
+ */
+interface Reader<T> {
+
+  enum ProcessStatus {
+    /**
+     * The value has been read, get can be called
+     */
+    DONE,
+    /**
+     * All the bytes of the buffer have been consumed and the value is still
+     * incomplete
+     */
+    REFILL,
+    /**
+     * The bytes do not follow the protocol, the reader must be reset before any
+     * other call
+     */
+    ERROR
+  }
+
+  /**
+   * Consumes the bytes of buffer until the value is complete or buffer is empty
+   *
+   * @param buffer a buffer in read-mode
+   * @return the status of the value
+   * @throws IllegalStateException if the last call has returned DONE or ERROR
+   *                               and the reader has not been reset since
+   */
+  ProcessStatus process(ByteBuffer buffer);
+
+  /**
+   * @return the value read
+   * @throws IllegalStateException if process has not returned DONE
+   */
+  T get();
+
+  /**
+   * Prepares the reader to read a new value
+   */
+  void reset();
+}
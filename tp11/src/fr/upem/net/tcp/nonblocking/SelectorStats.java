@@ -0,0 +1,135 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Metrics of the selector loops of a server, shared by all its reactors: each
+ * loop records into its own LoopMetrics, obtained with newLoop.
+ * <p>
+ * A wake-up is a return of select, whether keys were selected, a command was
+ * submitted or a timer expired. A server whose connections are idle should not
+ * wake up more than the ticks of its timing wheel.
+ * <p>
+ * With -Dfr.upem.net.stats.period=seconds, a snapshot of the metrics is logged
+ * periodically. With -Dfr.upem.net.stats.port=port, a snapshot is served as
+ * text/plain to every request on that port of the loopback address (e.g.
+ * curl http://localhost:port/).
+ */
+final class SelectorStats {
+  static final long PERIOD = Long.getLong("fr.upem.net.stats.period", 0); // seconds, 0 for none
+  static final int ADMIN_PORT = Integer.getInteger("fr.upem.net.stats.port", 0); // 0 for none
+
+  private static final Logger logger = Logger.getLogger(SelectorStats.class.getName());
+
+  private final String name;
+  private final List<LoopMetrics> loops = new CopyOnWriteArrayList<>();
+  private long lastWakeups; // guarded by this
+  private long lastTime = System.nanoTime(); // guarded by this
+
+  /**
+   * @param name the name printed in the snapshots
+   */
+  SelectorStats(String name) {
+    this.name = name;
+    if (PERIOD > 0) {
+      Thread.ofPlatform().daemon().name(name + "-stats").start(this::logPeriodically);
+    }
+    if (ADMIN_PORT > 0) {
+      Thread.ofPlatform().daemon().name(name + "-admin").start(this::serveSnapshots);
+    }
+  }
+
+  /**
+   * @param loopName the name of the loop in the snapshots
+   * @return the metrics of a new selector loop, to be recorded by its thread only
+   */
+  LoopMetrics newLoop(String loopName) {
+    var loop = new LoopMetrics(loopName);
+    loops.add(loop);
+    return loop;
+  }
+
+  /**
+   * @return the number of wake-ups of all the loops since the start of the server
+   */
+  long wakeups() {
+    var wakeups = 0L;
+    for (var loop : loops) {
+      wakeups += loop.wakeups();
+    }
+    return wakeups;
+  }
+
+  /**
+   * @return the wake-ups per second since the previous call, including the calls
+   *         made by snapshot (or since the creation of the counters for the
+   *         first call)
+   */
+  synchronized double wakeupsPerSecond() {
+    var now = System.nanoTime();
+    var total = wakeups();
+    var rate = (total - lastWakeups) * 1e9 / Math.max(1, now - lastTime);
+    lastWakeups = total;
+    lastTime = now;
+    return rate;
+  }
+
+  /**
+   * @return the metrics of every loop as text, with the wake-ups per second
+   *         since the previous snapshot. Can be called from any thread.
+   */
+  String snapshot() {
+    var builder = new StringBuilder(name).append(": wakeups=").append(wakeups())
+            .append(String.format(" wakeups/s=%.1f", wakeupsPerSecond())).append('\n');
+    for (var loop : loops) {
+      builder.append(loop.snapshot());
+    }
+    return builder.toString();
+  }
+
+  private void logPeriodically() {
+    try {
+      while (true) {
+        Thread.sleep(PERIOD * 1_000);
+        logger.info(snapshot());
+      }
+    } catch (InterruptedException e) {
+      // the JVM is exiting
+    }
+  }
+
+  private void serveSnapshots() {
+    try (var admin = ServerSocketChannel.open()) {
+      admin.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), ADMIN_PORT));
+      logger.info("Metrics of " + name + " served on " + admin.getLocalAddress());
+      while (true) {
+        try (var sc = admin.accept()) {
+          sc.read(ByteBuffer.allocate(1_024)); // the request, whatever it is, closing with it unread would reset
+          var answer = "HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\n\r\n" + snapshot();
+          var buffer = ByteBuffer.wrap(answer.getBytes(StandardCharsets.US_ASCII));
+          while (buffer.hasRemaining()) {
+            sc.write(buffer);
+          }
+        } catch (IOException e) {
+          logger.log(Level.INFO, "Could not send the metrics", e);
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Metrics endpoint of " + name + " stopped", e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "SelectorStats[" + name + ", wakeups=" + wakeups() + "]";
+  }
+}
@@ -0,0 +1,99 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Reader of a sequence sent as an int count followed by count elements.
+ * <p>
+ * The elements are not stored: each one is handed to onElement as soon as
+ * elementReader has read it, then elementReader is reset for the next one. So
+ * the memory used does not depend on the count, and a sequence whose elements
+ * are folded into primitive fields (such as the operands of a LongSum request)
+ * is read without allocation. A negative count is an ERROR, as is an element
+ * the element reader rejects. get returns the count.
+ *
+ * @param <R> the type of the reader of the elements
+ */
+final class SequenceReader<R extends Reader<?>> implements Reader<Integer> {
+
+  private enum State {
+    DONE, WAITING_COUNT, WAITING_ELEMENTS, ERROR
+  }
+
+  private final IntReader countReader = new IntReader();
+  private final R elementReader;
+  private final Consumer<? super R> onElement;
+  private State state = State.WAITING_COUNT;
+  private int count;
+  private int elementsRead;
+
+  /**
+   * @param elementReader the reader of one element
+   * @param onElement called with elementReader each time it has read an element
+   */
+  SequenceReader(R elementReader, Consumer<? super R> onElement) {
+    this.elementReader = elementReader;
+    this.onElement = onElement;
+  }
+
+  @Override
+  public ProcessStatus process(ByteBuffer buffer) {
+    if (state == State.DONE || state == State.ERROR) {
+      throw new IllegalStateException();
+    }
+    if (state == State.WAITING_COUNT) {
+      if (countReader.process(buffer) == ProcessStatus.REFILL) {
+        return ProcessStatus.REFILL;
+      }
+      count = countReader.value();
+      if (count < 0) {
+        state = State.ERROR;
+        return ProcessStatus.ERROR;
+      }
+      state = State.WAITING_ELEMENTS;
+    }
+    while (elementsRead < count) {
+      switch (elementReader.process(buffer)) {
+        case REFILL -> {
+          return ProcessStatus.REFILL;
+        }
+        case ERROR -> {
+          state = State.ERROR;
+          return ProcessStatus.ERROR;
+        }
+        case DONE -> {
+          onElement.accept(elementReader);
+          elementReader.reset();
+          elementsRead++;
+        }
+      }
+    }
+    state = State.DONE;
+    return ProcessStatus.DONE;
+  }
+
+  /**
+   * @return the number of elements of the sequence
+   * @throws IllegalStateException if process has not returned DONE
+   */
+  int count() {
+    if (state != State.DONE) {
+      throw new IllegalStateException();
+    }
+    return count;
+  }
+
+  @Override
+  public Integer get() {
+    return count();
+  }
+
+  @Override
+  public void reset() {
+    state = State.WAITING_COUNT;
+    countReader.reset();
+    elementReader.reset();
+    elementsRead = 0;
+  }
+}
@@ -5,25 +5,39 @@ import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ServerChatInt {
-  static private class Context {
+  static private class Context implements LoopControl.Connection {
     private final SelectionKey key;
     private final SocketChannel sc;
-    private final ByteBuffer bufferIn = ByteBuffer.allocate(BUFFER_SIZE);
-    private final ByteBuffer bufferOut = ByteBuffer.allocate(BUFFER_SIZE);
-    private final ArrayDeque<Integer> queue = new ArrayDeque<>();
+    private final BufferPool pool;
+    private ByteBuffer bufferIn; // borrowed from pool only while it holds pending bytes
+    private final Room room; // the messages to send are read from the ring of the room
+    private long cursor; // absolute position in the ring of the next byte to send
+    private long skipFrom = NO_SKIP; // when cursor reaches skipFrom, it jumps to skipTo: the frames between are dropped
+    private long skipTo;
     private final ServerChatInt server; // we could also have Context as an instance class, which would naturally
     // give access to ServerChatInt.this
+    private final TimingWheel timers;
+    private final LoopMetrics metrics; // of the loop of the selector of key
+    private final TimingWheel.Timer idleTimer = new TimingWheel.Timer(this::silentlyClose);
     private boolean closed = false;
+    private final IntReader intReader = new IntReader();
 
-    private Context(ServerChatInt server, SelectionKey key) {
+    private Context(ServerChatInt server, Room room, TimingWheel timers, LoopMetrics metrics, SelectionKey key) {
       this.key = key;
       this.sc = (SocketChannel) key.channel();
       this.server = server;
+      this.pool = server.bufferPool;
+      this.room = room;
+      this.timers = timers;
+      this.metrics = metrics;
+      timers.schedule(idleTimer);
+      this.cursor = room.ring.head(); // a new client only receives the messages sent after its arrival
     }
 
     /**
@@ -34,40 +48,148 @@ public class ServerChatInt {
      *
      */
     private void processIn() {
-      // TODO
+      if (bufferIn == null) {
+        return;
+      }
+      bufferIn.flip();
+      while (intReader.process(bufferIn) == Reader.ProcessStatus.DONE) {
+        var msg = intReader.value();
+        intReader.reset();
+        server.broadcast(room, msg);
+        if (!sc.isOpen()) {
+          return; // the client was a slow consumer of its own messages and has been disconnected
+        }
+      }
+      bufferIn.compact();
+      if (bufferIn.position() == 0) {
+        pool.release(bufferIn);
+        bufferIn = null;
+      }
+    }
+
+    /**
+     * @return the number of bytes still to be sent to the client
+     */
+    private long pendingBytes() {
+      var head = room.ring.head();
+      if (skipFrom == NO_SKIP) {
+        return head - cursor;
+      }
+      return (skipFrom - cursor) + (skipTo == SKIP_TO_HEAD ? 0 : head - skipTo);
     }
 
     /**
-     * Add a message to the message queue, tries to fill bufferOut and updateInterestOps
+     * Applies the slow-consumer policy of the server once a frame of frameSize
+     * bytes has been appended to the ring.
      *
-     * @param msg
+     * @param frameSize
      */
-    public void queueMessage(Integer msg) {
-      // TODO
+    private void onFrameAppended(int frameSize) {
+      var limits = server.limits;
+      if (cursor < room.ring.tail()) {
+        // the ring has overwritten bytes that were not sent yet, the stream cannot be resumed
+        limits.recordDisconnected();
+        silentlyClose();
+        return;
+      }
+      if (skipFrom != NO_SKIP && skipTo == SKIP_TO_HEAD) {
+        limits.recordDropped(1); // still dropping the newest frames
+        return;
+      }
+      var maxPending = limits.maxPendingBytes(frameSize);
+      var pending = pendingBytes();
+      if (pending <= maxPending) {
+        return;
+      }
+      switch (limits.policy()) {
+        case DROP_OLDEST -> dropOldest(room.ring.head() - maxPending, frameSize);
+        case DROP_NEWEST -> {
+          skipFrom = room.ring.head() - frameSize;
+          skipTo = SKIP_TO_HEAD;
+          limits.recordDropped(1);
+        }
+        case DISCONNECT -> {
+          limits.recordDropped((pending + frameSize - 1) / frameSize);
+          limits.recordDisconnected();
+          silentlyClose();
+        }
+      }
     }
 
     /**
-     * Try to fill bufferOut from the message queue
+     * Drops the pending frames before keepFrom. A frame partially sent is always
+     * completed so that the client never receives a truncated frame.
      *
+     * @param keepFrom absolute position of the oldest frame to keep
+     * @param frameSize
      */
-    private void processOut() {
-      // TODO
+    private void dropOldest(long keepFrom, int frameSize) {
+      var limits = server.limits;
+      if (skipFrom == NO_SKIP) {
+        if (cursor % frameSize == 0) {
+          limits.recordDropped((keepFrom - cursor) / frameSize);
+          cursor = keepFrom;
+          return;
+        }
+        skipFrom = cursor - cursor % frameSize + frameSize;
+        skipTo = skipFrom;
+      }
+      if (keepFrom > skipTo) {
+        limits.recordDropped((keepFrom - skipTo) / frameSize);
+        skipTo = keepFrom;
+      }
     }
 
     /**
      * Update the interestOps of the key looking only at values of the boolean
-     * closed and of both ByteBuffers.
+     * closed, of bufferIn and of the cursor in the ring of the room.
      *
-     * The convention is that both buffers are in write-mode before the call to
+     * The convention is that bufferIn is in write-mode before the call to
      * updateInterestOps and after the call. Also it is assumed that process has
      * been be called just before updateInterestOps.
      */
 
     private void updateInterestOps() {
-      // TODO
+      var interestOps = 0;
+      if (!closed && (bufferIn == null || bufferIn.hasRemaining())) {
+        interestOps |= SelectionKey.OP_READ;
+      }
+      if (pendingBytes() > 0) {
+        interestOps |= SelectionKey.OP_WRITE;
+      }
+      if (interestOps == 0) {
+        silentlyClose();
+        return;
+      }
+      key.interestOps(interestOps);
     }
 
-    private void silentlyClose() {
+    @Override
+    public int inputBytes() {
+      return bufferIn == null ? 0 : bufferIn.position();
+    }
+
+    @Override
+    public long outputBytes() {
+      return pendingBytes();
+    }
+
+    @Override
+    public void drain() {
+      closed = true;
+      updateInterestOps();
+    }
+
+    @Override
+    public void silentlyClose() {
+      if (Trace.ENABLED) {
+        server.trace.record(Trace.CLOSE, System.identityHashCode(sc), 0);
+      }
+      timers.cancel(idleTimer);
+      if (bufferIn != null) {
+        pool.release(bufferIn);
+        bufferIn = null;
+      }
       try {
         sc.close();
       } catch (IOException e) {
@@ -78,59 +200,218 @@ public class ServerChatInt {
     /**
      * Performs the read action on sc
      *
-     * The convention is that both buffers are in write-mode before the call to
+     * The convention is that bufferIn is in write-mode before the call to
      * doRead and after the call
      *
      * @throws IOException
      */
     private void doRead() throws IOException {
-      // TODO
+      timers.touch(idleTimer);
+      if (bufferIn == null) {
+        bufferIn = pool.acquire();
+      }
+      var read = sc.read(bufferIn);
+      metrics.recordRead(read);
+      if (read == -1) {
+        closed = true;
+      }
+      processIn();
+      if (sc.isOpen()) {
+        updateInterestOps();
+      }
     }
 
     /**
-     * Performs the write action on sc
-     *
-     * The convention is that both buffers are in write-mode before the call to
-     * doWrite and after the call
+     * Performs the write action on sc, sending the frames of the ring from cursor
      *
      * @throws IOException
      */
 
     private void doWrite() throws IOException {
-      // TODO
+      timers.touch(idleTimer);
+      var ring = room.ring;
+      var head = ring.head();
+      // the pending bytes are [cursor, firstEnd) then [secondStart, head), the frames between are dropped
+      var firstEnd = skipFrom == NO_SKIP ? head : skipFrom;
+      var secondStart = skipFrom == NO_SKIP || skipTo == SKIP_TO_HEAD ? head : skipTo;
+      ring.addRange(cursor, firstEnd);
+      ring.addRange(secondStart, head);
+      var written = ring.flushTo(sc);
+      metrics.recordWritten(written);
+      if (cursor + written < firstEnd) {
+        cursor += written;
+      } else {
+        cursor = secondStart + (written - (firstEnd - cursor));
+        skipFrom = NO_SKIP;
+      }
+      updateInterestOps();
+    }
+
+  }
+
+  /**
+   * The clients of one selector and the broadcast ring they read from. All the
+   * methods must be called on the thread of the selector.
+   */
+  static private class Room {
+    private final Selector selector;
+    private final Executor executor; // runs a task on the thread of selector
+    private final BroadcastRing ring;
+
+    private Room(Selector selector, Executor executor, int maxWriteSegments) {
+      this.selector = selector;
+      this.executor = executor;
+      this.ring = new BroadcastRing(RING_SIZE, maxWriteSegments);
     }
 
+    /**
+     * Encodes msg once in the ring and asks every client of the room to send it,
+     * applying the slow-consumer policy to the clients whose queue is full
+     *
+     * @param msg
+     */
+    private void deliver(int msg) {
+      ring.appendInt(msg);
+      for (var key : selector.keys()) {
+        if (key.isValid() && key.attachment() instanceof Context context) {
+          context.onFrameAppended(Integer.BYTES);
+          if (key.isValid()) {
+            context.updateInterestOps();
+          }
+        }
+      }
+    }
   }
 
   private static final int BUFFER_SIZE = 1_024;
+  private static final int BUFFERS_PER_SLAB = 256;
+  private static final long IDLE_TIMEOUT = 60_000; // milliseconds
+  private static final int RING_SIZE = 1 << 16;
+  private static final int DEFAULT_MAX_PENDING_BYTES = 16 * 1_024;
+  private static final int DEFAULT_MAX_PENDING_MESSAGES = 4 * 1_024;
+  private static final long NO_SKIP = Long.MAX_VALUE;
+  private static final long SKIP_TO_HEAD = -1;
   private static final Logger logger = Logger.getLogger(ServerChatInt.class.getName());
 
   private final ServerSocketChannel serverSocketChannel;
   private final Selector selector;
+  private final TimingWheel idleTimers = new TimingWheel(IDLE_TIMEOUT);
+  private final Trace trace = new Trace(ServerChatInt.class.getSimpleName());
+  private final SelectorStats stats = new SelectorStats(ServerChatInt.class.getSimpleName());
+  private final AdminConsole console = new AdminConsole(ServerChatInt.class.getSimpleName(), trace, stats);
+  private LoopMetrics metrics; // of the single-thread loop, created by launch()
+  private LoopControl control; // of the single-thread loop, created by launch()
+  private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, BUFFERS_PER_SLAB);
+  private final OutboundLimits limits;
+  private final int maxWriteSegments;
+  private List<Room> rooms;
 
   public ServerChatInt(int port) throws IOException {
+    this(port, new OutboundLimits(DEFAULT_MAX_PENDING_BYTES, DEFAULT_MAX_PENDING_MESSAGES,
+            OutboundLimits.Policy.DROP_OLDEST));
+  }
+
+  /**
+   * @param port
+   * @param limits the limits of the outbound queue of each client and the slow-consumer policy
+   * @throws IOException
+   */
+  ServerChatInt(int port, OutboundLimits limits) throws IOException {
+    this(port, limits, BroadcastRing.DEFAULT_MAX_SEGMENTS);
+  }
+
+  /**
+   * @param port
+   * @param limits the limits of the outbound queue of each client and the slow-consumer policy
+   * @param maxWriteSegments the maximum number of ranges of the ring sent by one gathering write
+   * @throws IOException
+   */
+  ServerChatInt(int port, OutboundLimits limits, int maxWriteSegments) throws IOException {
+    if (limits.maxPendingBytes(Integer.BYTES) + Integer.BYTES > RING_SIZE) {
+      throw new IllegalArgumentException("outbound limits must fit in the ring (" + RING_SIZE + " bytes)");
+    }
+    if (maxWriteSegments < 1) {
+      throw new IllegalArgumentException("maxWriteSegments must be positive");
+    }
+    this.limits = limits;
+    this.maxWriteSegments = maxWriteSegments;
     serverSocketChannel = ServerSocketChannel.open();
     serverSocketChannel.bind(new InetSocketAddress(port));
     selector = Selector.open();
+    console.addInfo(bufferPool::toString);
+    console.addInfo(limits::toString);
   }
 
   public void launch() throws IOException {
+    rooms = List.of(new Room(selector, Runnable::run, maxWriteSegments));
     serverSocketChannel.configureBlocking(false);
     serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-    while (!Thread.interrupted()) {
-      Helpers.printKeys(selector); // for debug
-      System.out.println("Starting select");
+    metrics = stats.newLoop("main");
+    var keyHandler = metrics.measure(this::treatKey);
+    control = new LoopControl("main", selector);
+    console.addLoop(control);
+    while (!Thread.interrupted() && control.isRunning()) {
+      if (Trace.ENABLED) {
+        trace.record(Trace.SELECT_START, 0, 0);
+      }
+      metrics.beforeSelect();
       try {
-        selector.select(this::treatKey);
+        var selected = selector.select(keyHandler, idleTimers.timeUntilNextTick());
+        metrics.afterSelect();
+        if (Trace.ENABLED) {
+          trace.record(Trace.SELECT_END, 0, selected);
+        }
       } catch (UncheckedIOException tunneled) {
         throw tunneled.getCause();
       }
-      System.out.println("Select finished");
+      control.runCommands();
+      idleTimers.advance();
     }
   }
 
+  /**
+   * Runs the server in multi-reactor mode: the current thread accepts the clients
+   * and hands them round-robin to nbReactors worker selectors, each running
+   * treatKey on its own Contexts.
+   *
+   * @param nbReactors
+   * @throws IOException
+   */
+  public void launch(int nbReactors) throws IOException {
+    launch(nbReactors, ReactorPool.Strategy.ROUND_ROBIN);
+  }
+
+  /**
+   * Runs the server in multi-reactor mode, handing the accepted clients to the
+   * worker selectors according to strategy.
+   *
+   * @param nbReactors
+   * @param strategy
+   * @throws IOException
+   */
+  void launch(int nbReactors, ReactorPool.Strategy strategy) throws IOException {
+    var reactorPool = new ReactorPool(serverSocketChannel, nbReactors, strategy, trace, stats,
+            console, IDLE_TIMEOUT, this::treatKey,
+            (reactor, key) -> new Context(this, roomOf(key.selector()), reactor.timers(), reactor.metrics(), key));
+    rooms = reactorPool.reactors().stream()
+            .map(reactor -> new Room(reactor.selector(), reactor::execute, maxWriteSegments))
+            .toList();
+    reactorPool.launch();
+  }
+
+  private Room roomOf(Selector selector) {
+    for (var room : rooms) {
+      if (room.selector == selector) {
+        return room;
+      }
+    }
+    throw new AssertionError("unknown selector");
+  }
+
   private void treatKey(SelectionKey key) {
-    Helpers.printSelectedKey(key); // for debug
+    if (Trace.ENABLED) {
+      trace.recordKey(key);
+    }
     try {
       if (key.isValid() && key.isAcceptable()) {
         doAccept(key);
@@ -153,10 +434,25 @@ public class ServerChatInt {
   }
 
   private void doAccept(SelectionKey key) throws IOException {
-    // TODO
+    var sc = serverSocketChannel.accept();
+    if (sc == null) {
+      // toujours vérifier si la tentative a échoué !
+      // auquel cas il faut attendre d'être à nouveau notifié
+    } else {
+      if (Trace.ENABLED) {
+        trace.record(Trace.ACCEPT, System.identityHashCode(sc), 0);
+      }
+      sc.configureBlocking(false);
+      var clientKey = sc.register(selector, SelectionKey.OP_READ);
+      clientKey.attach(new Context(this, rooms.get(0), idleTimers, metrics, clientKey));
+    }
   }
 
   private void silentlyClose(SelectionKey key) {
+    if (key.attachment() instanceof Context context) {
+      context.silentlyClose();
+      return;
+    }
     Channel sc = (Channel) key.channel();
     try {
       sc.close();
@@ -168,21 +464,74 @@ public class ServerChatInt {
   /**
    * Add a message to all connected clients queue
    *
+   * The message is delivered directly to the room of the sender. Other rooms
+   * belong to other reactor threads and receive it through their executor, so the
+   * cost of a message is one task per reactor and never one allocation per client.
+   *
+   * @param origin the room of the sender, whose thread is the current thread
    * @param msg
    */
-  private void broadcast(Integer msg) {
-    // TODO
+  private void broadcast(Room origin, int msg) {
+    for (var room : rooms) {
+      if (room == origin) {
+        room.deliver(msg);
+      } else {
+        room.executor.execute(() -> room.deliver(msg));
+      }
+    }
+  }
+
+  Trace trace() {
+    return trace;
+  }
+
+  SelectorStats stats() {
+    return stats;
+  }
+
+  AdminConsole console() {
+    return console;
   }
 
   public static void main(String[] args) throws NumberFormatException, IOException {
-    if (args.length != 1) {
+    if (args.length < 1 || args.length > 6) {
       usage();
       return;
     }
-    new ServerChatInt(Integer.parseInt(args[0])).launch();
+    var limits = new OutboundLimits(DEFAULT_MAX_PENDING_BYTES, DEFAULT_MAX_PENDING_MESSAGES,
+            OutboundLimits.Policy.DROP_OLDEST);
+    var next = 1;
+    if (args.length >= 4) {
+      OutboundLimits.Policy policy;
+      try {
+        policy = OutboundLimits.Policy.valueOf(args[1].toUpperCase());
+      } catch (IllegalArgumentException e) {
+        usage();
+        return;
+      }
+      limits = new OutboundLimits(Integer.parseInt(args[2]), Integer.parseInt(args[3]), policy);
+      next = 4;
+    }
+    var strategy = ReactorPool.Strategy.ROUND_ROBIN;
+    if (args.length > next + 1) {
+      try {
+        strategy = ReactorPool.Strategy.valueOf(args[next + 1].toUpperCase());
+      } catch (IllegalArgumentException e) {
+        usage();
+        return;
+      }
+    }
+    var server = new ServerChatInt(Integer.parseInt(args[0]), limits);
+    server.console().start();
+    if (args.length > next) {
+      server.launch(Integer.parseInt(args[next]), strategy);
+    } else {
+      server.launch();
+    }
   }
 
   private static void usage() {
-    System.out.println("Usage : ServerSumBetter port");
+    System.out.println("Usage : ServerChatInt port [DROP_OLDEST|DROP_NEWEST|DISCONNECT maxPendingBytes maxPendingMessages]"
+            + " [nbReactors [ROUND_ROBIN|LEAST_LOADED]]");
   }
-}
\ No newline at end of file
+}
@@ -9,33 +9,54 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ServerEcho {
-  static private class Context {
+  static private class Context implements LoopControl.Connection {
     private final SelectionKey key;
     private final SocketChannel sc;
-    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final BufferPool pool;
+    private final ByteBuffer readBuffer; // owned by the thread of the selector, shared by all its contexts
+    private ByteBuffer spill; // borrowed from pool only while bytes are waiting for the send buffer, null otherwise
+    private final TimingWheel timers;
+    private final LoopMetrics metrics; // of the loop of the selector of key
+    private final Trace trace; // of the server
+    private final TimingWheel.Timer idleTimer = new TimingWheel.Timer(this::silentlyClose);
     private boolean closed = false;
 
-    private Context(SelectionKey key) {
+    /**
+     * Must be called on the thread of the selector of key
+     */
+    private Context(BufferPool pool, TimingWheel timers, LoopMetrics metrics, Trace trace, SelectionKey key) {
       this.key = key;
       this.sc = (SocketChannel) key.channel();
+      this.pool = pool;
+      this.readBuffer = READ_BUFFERS.get();
+      this.timers = timers;
+      this.metrics = metrics;
+      this.trace = trace;
+      timers.schedule(idleTimer);
     }
 
     /**
      * Update the interestOps of the key looking only at values of the boolean
-     * closed and the ByteBuffer buffer.
+     * closed and the ByteBuffer spill.
+     *
+     * OP_WRITE is only registered while bytes are pending, otherwise the selector
+     * would wake up for every idle connection whose send buffer has room.
+     *
+     * Once the client has shut down its output (closed), the context stops
+     * reading, sends what is still pending, then shuts down its own output.
      *
-     * The convention is that buff is in write-mode.
+     * The convention is that spill is in write-mode.
      */
     private void updateInterestOps() {
       var interestOps = 0;
-      if (!closed || buffer.hasRemaining()) {
+      if (!closed && (spill == null || spill.hasRemaining())) {
         interestOps |= SelectionKey.OP_READ;
       }
-      if (buffer.position() >= 0) {
+      if (pendingBytes() > 0) {
         interestOps |= SelectionKey.OP_WRITE;
       }
-      if (buffer.position() == 0) {
-        silentlyClose();
+      if (interestOps == 0) {
+        shutdownAndClose();
         return;
       }
       key.interestOps(interestOps);
@@ -44,34 +65,115 @@ public class ServerEcho {
     /**
      * Performs the read action on sc
      *
-     * The convention is that buffer is in write-mode before calling doRead and is in
+     * When nothing is pending, the bytes are read into the shared readBuffer and
+     * written back at once: only what the send buffer could not take is copied
+     * into a spill buffer. While bytes are pending, the new bytes are read behind
+     * them in spill to keep their order.
+     *
+     * The convention is that spill is in write-mode before calling doRead and is in
      * write-mode after calling doRead
      *
      * @throws IOException
      */
     private void doRead() throws IOException {
-      if (sc.read(buffer) == -1){
+      timers.touch(idleTimer);
+      if (spill != null) {
+        var read = sc.read(spill);
+        metrics.recordRead(read);
+        if (read == -1) {
+          closed = true;
+        }
+        doWrite();
+        return;
+      }
+      readBuffer.clear();
+      var read = sc.read(readBuffer);
+      metrics.recordRead(read);
+      if (read == -1) {
         closed = true;
       }
+      readBuffer.flip();
+      metrics.recordWritten(sc.write(readBuffer));
+      if (readBuffer.hasRemaining()) {
+        spill = pool.acquire();
+        spill.put(readBuffer);
+      }
       updateInterestOps();
     }
 
     /**
      * Performs the write action on sc
      *
-     * The convention is that buffer is in write-mode before calling doWrite and is in
+     * The convention is that spill is in write-mode before calling doWrite and is in
      * write-mode after calling doWrite
      *
      * @throws IOException
      */
     private void doWrite() throws IOException {
-      buffer.flip();
-      sc.write(buffer);
-      buffer.compact();
+      timers.touch(idleTimer);
+      if (spill != null) {
+        spill.flip();
+        metrics.recordWritten(sc.write(spill));
+        spill.compact();
+        releaseIfDrained();
+      }
       updateInterestOps();
     }
 
-    private void silentlyClose() {
+    private int pendingBytes() {
+      return spill == null ? 0 : spill.position();
+    }
+
+    /**
+     * Gives spill back to the pool if it holds no pending bytes
+     */
+    private void releaseIfDrained() {
+      if (spill != null && spill.position() == 0) {
+        pool.release(spill);
+        spill = null;
+      }
+    }
+
+    @Override
+    public int inputBytes() {
+      return 0; // the bytes not sent yet are all in spill
+    }
+
+    @Override
+    public long outputBytes() {
+      return pendingBytes();
+    }
+
+    @Override
+    public void drain() {
+      closed = true;
+      updateInterestOps();
+    }
+
+    /**
+     * Called once the client has shut down its output and everything has been
+     * sent: the output is shut down too, so that the client reads the end of
+     * stream just after the last bytes, then the socket is closed.
+     */
+    private void shutdownAndClose() {
+      try {
+        sc.shutdownOutput();
+      } catch (IOException e) {
+        // the client is already gone, nothing left to tell it
+      }
+      silentlyClose();
+    }
+
+    @Override
+    public void silentlyClose() {
+      if (Trace.ENABLED) {
+        trace.record(Trace.CLOSE, System.identityHashCode(sc), 0);
+      }
+      timers.cancel(idleTimer);
+      if (spill != null) {
+        pool.release(spill);
+        spill = null;
+      }
       try {
         sc.close();
       } catch (IOException e) {
@@ -80,35 +182,86 @@ public class ServerEcho {
     }
   }
 
-  private static final int BUFFER_SIZE = 1_024;
+  private static final int BUFFER_SIZE = 16 * 1_024; // a spill buffer must hold a whole readBuffer
+  private static final int BUFFERS_PER_SLAB = 64;
+  private static final ThreadLocal<ByteBuffer> READ_BUFFERS =
+          ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+  private static final long IDLE_TIMEOUT = 60_000; // milliseconds
   private static final Logger logger = Logger.getLogger(ServerEcho.class.getName());
 
   private final ServerSocketChannel serverSocketChannel;
   private final Selector selector;
+  private final TimingWheel idleTimers = new TimingWheel(IDLE_TIMEOUT);
+  private final Trace trace = new Trace(ServerEcho.class.getSimpleName());
+  private final SelectorStats stats = new SelectorStats(ServerEcho.class.getSimpleName());
+  private final AdminConsole console = new AdminConsole(ServerEcho.class.getSimpleName(), trace, stats);
+  private LoopMetrics metrics; // of the single-thread loop, created by launch()
+  private LoopControl control; // of the single-thread loop, created by launch()
+  private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, BUFFERS_PER_SLAB);
 
   public ServerEcho(int port) throws IOException {
     serverSocketChannel = ServerSocketChannel.open();
     serverSocketChannel.bind(new InetSocketAddress(port));
     selector = Selector.open();
+    console.addInfo(bufferPool::toString);
   }
 
   public void launch() throws IOException {
     serverSocketChannel.configureBlocking(false);
     serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-    while (!Thread.interrupted()) {
-      Helpers.printKeys(selector); // for debug
-      System.out.println("Starting select");
+    metrics = stats.newLoop("main");
+    var keyHandler = metrics.measure(this::treatKey);
+    control = new LoopControl("main", selector);
+    console.addLoop(control);
+    while (!Thread.interrupted() && control.isRunning()) {
+      if (Trace.ENABLED) {
+        trace.record(Trace.SELECT_START, 0, 0);
+      }
+      metrics.beforeSelect();
       try {
-        selector.select(this::treatKey);
+        var selected = selector.select(keyHandler, idleTimers.timeUntilNextTick());
+        metrics.afterSelect();
+        if (Trace.ENABLED) {
+          trace.record(Trace.SELECT_END, 0, selected);
+        }
       } catch (UncheckedIOException tunneled) {
         throw tunneled.getCause();
       }
-      System.out.println("Select finished");
+      control.runCommands();
+      idleTimers.advance();
     }
   }
 
+  /**
+   * Runs the server in multi-reactor mode: the current thread accepts the clients
+   * and hands them round-robin to nbReactors worker selectors, each running
+   * treatKey on its own Contexts.
+   *
+   * @param nbReactors
+   * @throws IOException
+   */
+  public void launch(int nbReactors) throws IOException {
+    launch(nbReactors, ReactorPool.Strategy.ROUND_ROBIN);
+  }
+
+  /**
+   * Runs the server in multi-reactor mode, handing the accepted clients to the
+   * worker selectors according to strategy.
+   *
+   * @param nbReactors
+   * @param strategy
+   * @throws IOException
+   */
+  void launch(int nbReactors, ReactorPool.Strategy strategy) throws IOException {
+    new ReactorPool(serverSocketChannel, nbReactors, strategy, trace, stats, console,
+            IDLE_TIMEOUT, this::treatKey,
+            (reactor, key) -> new Context(bufferPool, reactor.timers(), reactor.metrics(), reactor.trace(), key)).launch();
+  }
+
   private void treatKey(SelectionKey key) {
-    Helpers.printSelectedKey(key); // for debug
+    if (Trace.ENABLED) {
+      trace.recordKey(key);
+    }
     try {
       if (key.isValid() && key.isAcceptable()) {
         doAccept(key);
@@ -136,13 +289,20 @@ public class ServerEcho {
       // toujours vérifier si la tentative a échoué !
       // auquel cas il faut attendre d'être à nouveau notifié
     } else {
+      if (Trace.ENABLED) {
+        trace.record(Trace.ACCEPT, System.identityHashCode(sc), 0);
+      }
       sc.configureBlocking(false);
       var clientKey = sc.register(selector, SelectionKey.OP_READ);
-      clientKey.attach(new Context(clientKey));
+      clientKey.attach(new Context(bufferPool, idleTimers, metrics, trace, clientKey));
     }
   }
 
   private void silentlyClose(SelectionKey key) {
+    if (key.attachment() instanceof Context context) {
+      context.silentlyClose();
+      return;
+    }
     var sc = (Channel) key.channel();
     try {
       sc.close();
@@ -151,15 +311,42 @@ public class ServerEcho {
     }
   }
 
+  Trace trace() {
+    return trace;
+  }
+
+  SelectorStats stats() {
+    return stats;
+  }
+
+  AdminConsole console() {
+    return console;
+  }
+
   public static void main(String[] args) throws NumberFormatException, IOException {
-    if (args.length != 1) {
+    if (args.length < 1 || args.length > 3) {
       usage();
       return;
     }
-    new ServerEcho(Integer.parseInt(args[0])).launch();
+    var strategy = ReactorPool.Strategy.ROUND_ROBIN;
+    if (args.length == 3) {
+      try {
+        strategy = ReactorPool.Strategy.valueOf(args[2].toUpperCase());
+      } catch (IllegalArgumentException e) {
+        usage();
+        return;
+      }
+    }
+    var server = new ServerEcho(Integer.parseInt(args[0]));
+    server.console().start();
+    if (args.length >= 2) {
+      server.launch(Integer.parseInt(args[1]), strategy);
+    } else {
+      server.launch();
+    }
   }
 
   private static void usage() {
-    System.out.println("Usage : ServerEcho port");
+    System.out.println("Usage : ServerEcho port [nbReactors [ROUND_ROBIN|LEAST_LOADED]]");
   }
 }
\ No newline at end of file
@@ -0,0 +1,411 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Nonblocking server of the LongSum protocol: a request is an int count followed
+ * by count longs, the answer is their sum as a long.
+ * <p>
+ * Requests are read incrementally by a SequenceReader: the operands are summed as
+ * they arrive, so a connection never holds more than one buffer of input
+ * whatever the size of its request, and an idle connection holds no buffer at
+ * all.
+ */
+public class ServerLongSum {
+  static private class Context implements LoopControl.Connection {
+    private final SelectionKey key;
+    private final SocketChannel sc;
+    private final BufferPool pool;
+    private ByteBuffer bufferIn; // both buffers are borrowed from pool only while they hold pending bytes
+    private ByteBuffer bufferOut;
+    private final TimingWheel timers;
+    private final LoopMetrics metrics; // of the loop of the selector of key
+    private final Trace trace; // of the server
+    private final TimingWheel.Timer idleTimer = new TimingWheel.Timer(this::silentlyClose);
+    private boolean closed = false;
+    private long sum; // sum of the operands of the current request read so far
+    private final SequenceReader<LongReader> requestReader =
+            new SequenceReader<>(new LongReader(), operand -> sum += operand.value());
+
+    private Context(BufferPool pool, TimingWheel timers, LoopMetrics metrics, Trace trace, SelectionKey key) {
+      this.key = key;
+      this.sc = (SocketChannel) key.channel();
+      this.pool = pool;
+      this.timers = timers;
+      this.metrics = metrics;
+      this.trace = trace;
+      timers.schedule(idleTimer);
+    }
+
+    /**
+     * Process the content of bufferIn into bufferOut
+     *
+     * requestReader adds each operand to sum as soon as it has been read, so a
+     * request is never stored whatever its size. When a request is complete, its
+     * sum is written in bufferOut, and the following requests are processed the
+     * same way. The requests are only read while there is room in bufferOut for
+     * their answer, the others wait for doWrite.
+     *
+     * A negative count is a protocol error which closes the connection.
+     *
+     * The convention is that both buffers are in write-mode before the call to
+     * process and after the call
+     *
+     */
+
+    private void process() {
+      if (bufferIn == null) {
+        return;
+      }
+      if (bufferOut == null) {
+        bufferOut = pool.acquire();
+      }
+      bufferIn.flip();
+      while (bufferOut.remaining() >= Long.BYTES) {
+        var status = requestReader.process(bufferIn);
+        if (status == Reader.ProcessStatus.REFILL) {
+          break;
+        }
+        if (status == Reader.ProcessStatus.ERROR) {
+          logger.info("Negative count received, closing the connection");
+          silentlyClose();
+          return;
+        }
+        bufferOut.putLong(sum);
+        sum = 0;
+        requestReader.reset();
+      }
+      bufferIn.compact();
+      bufferIn = releaseIfDrained(bufferIn);
+      bufferOut = releaseIfDrained(bufferOut);
+    }
+
+    /**
+     * Update the interestOps of the key looking only at values of the boolean
+     * closed and of both ByteBuffers.
+     *
+     * Once the client has shut down its output (closed), the context stops
+     * reading, sends what is still pending, then shuts down its own output.
+     *
+     * The convention is that both buffers are in write-mode before the call to
+     * updateInterestOps and after the call. Also it is assumed that process has
+     * been be called just before updateInterestOps.
+     */
+
+    private void updateInterestOps() {
+      var interestOps = 0;
+      if (!closed && (bufferIn == null || bufferIn.hasRemaining())) {
+        interestOps |= SelectionKey.OP_READ;
+      }
+      if (pendingBytes(bufferOut) > 0) {
+        interestOps |= SelectionKey.OP_WRITE;
+      }
+      if (interestOps == 0) {
+        shutdownAndClose();
+        return;
+      }
+      key.interestOps(interestOps);
+    }
+
+    private static int pendingBytes(ByteBuffer buffer) {
+      return buffer == null ? 0 : buffer.position();
+    }
+
+    /**
+     * Gives buffer back to the pool if it holds no pending bytes
+     *
+     * @param buffer a buffer in write-mode, possibly null
+     * @return buffer if it is still in use, null if it was given back
+     */
+    private ByteBuffer releaseIfDrained(ByteBuffer buffer) {
+      if (buffer != null && buffer.position() == 0) {
+        pool.release(buffer);
+        return null;
+      }
+      return buffer;
+    }
+
+    @Override
+    public int inputBytes() {
+      return pendingBytes(bufferIn);
+    }
+
+    @Override
+    public long outputBytes() {
+      return pendingBytes(bufferOut);
+    }
+
+    @Override
+    public void drain() {
+      closed = true;
+      process();
+      if (sc.isOpen()) {
+        updateInterestOps();
+      }
+    }
+
+    /**
+     * Called once the client has shut down its output and everything has been
+     * sent: the output is shut down too, so that the client reads the end of
+     * stream just after the last bytes, then the socket is closed.
+     */
+    private void shutdownAndClose() {
+      try {
+        sc.shutdownOutput();
+      } catch (IOException e) {
+        // the client is already gone, nothing left to tell it
+      }
+      silentlyClose();
+    }
+
+    @Override
+    public void silentlyClose() {
+      if (Trace.ENABLED) {
+        trace.record(Trace.CLOSE, System.identityHashCode(sc), 0);
+      }
+      timers.cancel(idleTimer);
+      if (bufferIn != null) {
+        pool.release(bufferIn);
+        bufferIn = null;
+      }
+      if (bufferOut != null) {
+        pool.release(bufferOut);
+        bufferOut = null;
+      }
+      try {
+        sc.close();
+      } catch (IOException e) {
+        // ignore exception
+      }
+    }
+
+    /**
+     * Performs the read action on sc
+     *
+     * The convention is that both buffers are in write-mode before the call to
+     * doRead and after the call
+     *
+     * @throws IOException
+     */
+
+    private void doRead() throws IOException {
+      timers.touch(idleTimer);
+      if (bufferIn == null) {
+        bufferIn = pool.acquire();
+      }
+      var read = sc.read(bufferIn);
+      metrics.recordRead(read);
+      if (read == -1) {
+        closed = true;
+      }
+      process();
+      if (!sc.isOpen()) {
+        return;
+      }
+      bufferIn = releaseIfDrained(bufferIn);
+      // the answers usually fit in the send buffer: write them now rather than waiting for OP_WRITE
+      doWrite();
+    }
+
+    /**
+     * Performs the write action on sc
+     *
+     * The convention is that both buffers are in write-mode before the call to
+     * doWrite and after the call
+     *
+     * @throws IOException
+     */
+
+    private void doWrite() throws IOException {
+      timers.touch(idleTimer);
+      if (bufferOut != null) {
+        bufferOut.flip();
+        metrics.recordWritten(sc.write(bufferOut));
+        bufferOut.compact();
+        bufferOut = releaseIfDrained(bufferOut);
+      }
+      process();
+      if (!sc.isOpen()) {
+        return;
+      }
+      updateInterestOps();
+    }
+
+  }
+
+  private static final int BUFFER_SIZE = 1024;
+  private static final int BUFFERS_PER_SLAB = 256;
+  private static final int BACKLOG = 1024;
+  private static final long IDLE_TIMEOUT = 60_000; // milliseconds
+  private static final Logger logger = Logger.getLogger(ServerLongSum.class.getName());
+
+  private final ServerSocketChannel serverSocketChannel;
+  private final Selector selector;
+  private final TimingWheel idleTimers = new TimingWheel(IDLE_TIMEOUT);
+  private final Trace trace = new Trace(ServerLongSum.class.getSimpleName());
+  private final SelectorStats stats = new SelectorStats(ServerLongSum.class.getSimpleName());
+  private final AdminConsole console = new AdminConsole(ServerLongSum.class.getSimpleName(), trace, stats);
+  private LoopMetrics metrics; // of the single-thread loop, created by launch()
+  private LoopControl control; // of the single-thread loop, created by launch()
+  private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, BUFFERS_PER_SLAB);
+
+  public ServerLongSum(int port) throws IOException {
+    serverSocketChannel = ServerSocketChannel.open();
+    serverSocketChannel.bind(new InetSocketAddress(port), BACKLOG);
+    selector = Selector.open();
+    console.addInfo(bufferPool::toString);
+  }
+
+  public void launch() throws IOException {
+    serverSocketChannel.configureBlocking(false);
+    serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+    metrics = stats.newLoop("main");
+    var keyHandler = metrics.measure(this::treatKey);
+    control = new LoopControl("main", selector);
+    console.addLoop(control);
+    while (!Thread.interrupted() && control.isRunning()) {
+      if (Trace.ENABLED) {
+        trace.record(Trace.SELECT_START, 0, 0);
+      }
+      metrics.beforeSelect();
+      try {
+        var selected = selector.select(keyHandler, idleTimers.timeUntilNextTick());
+        metrics.afterSelect();
+        if (Trace.ENABLED) {
+          trace.record(Trace.SELECT_END, 0, selected);
+        }
+      } catch (UncheckedIOException tunneled) {
+        throw tunneled.getCause();
+      }
+      control.runCommands();
+      idleTimers.advance();
+    }
+  }
+
+  /**
+   * Runs the server in multi-reactor mode: the current thread accepts the clients
+   * and hands them round-robin to nbReactors worker selectors, each running
+   * treatKey on its own Contexts.
+   *
+   * @param nbReactors
+   * @throws IOException
+   */
+  public void launch(int nbReactors) throws IOException {
+    launch(nbReactors, ReactorPool.Strategy.ROUND_ROBIN);
+  }
+
+  /**
+   * Runs the server in multi-reactor mode, handing the accepted clients to the
+   * worker selectors according to strategy.
+   *
+   * @param nbReactors
+   * @param strategy
+   * @throws IOException
+   */
+  void launch(int nbReactors, ReactorPool.Strategy strategy) throws IOException {
+    new ReactorPool(serverSocketChannel, nbReactors, strategy, trace, stats, console,
+            IDLE_TIMEOUT, this::treatKey,
+            (reactor, key) -> new Context(bufferPool, reactor.timers(), reactor.metrics(), reactor.trace(), key)).launch();
+  }
+
+  private void treatKey(SelectionKey key) {
+    if (Trace.ENABLED) {
+      trace.recordKey(key);
+    }
+    try {
+      if (key.isValid() && key.isAcceptable()) {
+        doAccept(key);
+      }
+    } catch (IOException ioe) {
+      // lambda call in select requires to tunnel IOException
+      throw new UncheckedIOException(ioe);
+    }
+    try {
+      if (key.isValid() && key.isWritable()) {
+        ((Context) key.attachment()).doWrite();
+      }
+      if (key.isValid() && key.isReadable()) {
+        ((Context) key.attachment()).doRead();
+      }
+    } catch (IOException e) {
+      logger.log(Level.INFO, "Connection closed with client due to IOException", e);
+      silentlyClose(key);
+    }
+  }
+
+  private void doAccept(SelectionKey key) throws IOException {
+    var sc = serverSocketChannel.accept();
+    if (sc == null) {
+      // toujours vérifier si la tentative a échoué !
+      // auquel cas il faut attendre d'être à nouveau notifié
+    } else {
+      if (Trace.ENABLED) {
+        trace.record(Trace.ACCEPT, System.identityHashCode(sc), 0);
+      }
+      sc.configureBlocking(false);
+      // answers are small and pipelined: do not let Nagle hold them back
+      sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      var clientKey = sc.register(selector, SelectionKey.OP_READ);
+      clientKey.attach(new Context(bufferPool, idleTimers, metrics, trace, clientKey));
+    }
+  }
+
+  private void silentlyClose(SelectionKey key) {
+    if (key.attachment() instanceof Context context) {
+      context.silentlyClose();
+      return;
+    }
+    Channel sc = (Channel) key.channel();
+    try {
+      sc.close();
+    } catch (IOException e) {
+      // ignore exception
+    }
+  }
+
+  Trace trace() {
+    return trace;
+  }
+
+  SelectorStats stats() {
+    return stats;
+  }
+
+  AdminConsole console() {
+    return console;
+  }
+
+  public static void main(String[] args) throws NumberFormatException, IOException {
+    if (args.length < 1 || args.length > 3) {
+      usage();
+      return;
+    }
+    var strategy = ReactorPool.Strategy.ROUND_ROBIN;
+    if (args.length == 3) {
+      try {
+        strategy = ReactorPool.Strategy.valueOf(args[2].toUpperCase());
+      } catch (IllegalArgumentException e) {
+        usage();
+        return;
+      }
+    }
+    var server = new ServerLongSum(Integer.parseInt(args[0]));
+    server.console().start();
+    if (args.length >= 2) {
+      server.launch(Integer.parseInt(args[1]), strategy);
+    } else {
+      server.launch();
+    }
+  }
+
+  private static void usage() {
+    System.out.println("Usage : ServerLongSum port [nbReactors [ROUND_ROBIN|LEAST_LOADED]]");
+  }
+}
@@ -3,48 +3,95 @@ package fr.upem.net.tcp.nonblocking;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ServerSumBetter {
-  static private class Context {
+  static private class Context implements LoopControl.Connection {
     private final SelectionKey key;
     private final SocketChannel sc;
-    private final ByteBuffer bufferIn = ByteBuffer.allocate(BUFFER_SIZE);
-    private final ByteBuffer bufferOut = ByteBuffer.allocate(BUFFER_SIZE);
+    private final BufferPool pool;
+    private ByteBuffer bufferIn; // both buffers are borrowed from pool only while they hold pending bytes
+    private ByteBuffer bufferOut;
+    private final TimingWheel timers;
+    private final LoopMetrics metrics; // of the loop of the selector of key
+    private final Trace trace; // of the server
+    private final TimingWheel.Timer idleTimer = new TimingWheel.Timer(this::silentlyClose);
     private boolean closed = false;
+    private final IntReader intReader = new IntReader(); // reads the operands of a request split between two reads
+    private boolean splitRequest = false;
+    private boolean hasLeftOperand = false;
+    private int leftOperand;
 
-    private Context(SelectionKey key) {
+    private Context(BufferPool pool, TimingWheel timers, LoopMetrics metrics, Trace trace, SelectionKey key) {
       this.key = key;
       this.sc = (SocketChannel) key.channel();
+      this.pool = pool;
+      this.timers = timers;
+      this.metrics = metrics;
+      this.trace = trace;
+      timers.schedule(idleTimer);
     }
 
     /**
      * Process the content of bufferIn into bufferOut
      *
+     * The requests entirely in bufferIn are read in place. A request split
+     * between two reads is read by intReader, which keeps its first bytes, so
+     * that bufferIn can be given back as soon as it is consumed. All the
+     * requests of bufferIn are answered in one pass, as long as their results fit
+     * in bufferOut. The remaining requests stay in bufferIn and are
+     * processed once doWrite has made room in bufferOut.
+     *
      * The convention is that both buffers are in write-mode before the call to
      * process and after the call
      *
      */
 
     private void process() {
-      bufferIn.flip();
-      if (bufferIn.remaining() < 2 * Integer.BYTES){
-        bufferIn.compact();
+      if (bufferIn == null) {
         return;
       }
-      var sum = bufferIn.getInt() + bufferIn.getInt();
+      if (bufferOut == null) {
+        bufferOut = pool.acquire();
+      }
+      bufferIn.flip();
+      while (bufferOut.remaining() >= Integer.BYTES && bufferIn.hasRemaining()) {
+        if (!splitRequest && bufferIn.remaining() >= REQUEST_SIZE) {
+          // the whole request is in bufferIn, it is read in place
+          bufferOut.putInt(bufferIn.getInt() + bufferIn.getInt());
+          continue;
+        }
+        splitRequest = true;
+        if (intReader.process(bufferIn) == Reader.ProcessStatus.REFILL) {
+          break;
+        }
+        var operand = intReader.value();
+        intReader.reset();
+        if (!hasLeftOperand) {
+          leftOperand = operand;
+          hasLeftOperand = true;
+          continue;
+        }
+        bufferOut.putInt(leftOperand + operand);
+        hasLeftOperand = false;
+        splitRequest = false;
+      }
       bufferIn.compact();
-      bufferOut.putInt(sum);
-      updateInterestOps();
+      bufferIn = releaseIfDrained(bufferIn);
+      bufferOut = releaseIfDrained(bufferOut);
     }
 
     /**
      * Update the interestOps of the key looking only at values of the boolean
      * closed and of both ByteBuffers.
      *
+     * Once the client has shut down its output (closed), the context stops
+     * reading, sends what is still pending, then shuts down its own output.
+     *
      * The convention is that both buffers are in write-mode before the call to
      * updateInterestOps and after the call. Also it is assumed that process has
      * been be called just before updateInterestOps.
@@ -52,20 +99,84 @@ public class ServerSumBetter {
 
     private void updateInterestOps() {
       var interestOps = 0;
-      if (!closed || bufferIn.hasRemaining()) {
+      if (!closed && (bufferIn == null || bufferIn.hasRemaining())) {
         interestOps |= SelectionKey.OP_READ;
       }
-      if (bufferOut.position() >= 0) {
+      if (pendingBytes(bufferOut) > 0) {
         interestOps |= SelectionKey.OP_WRITE;
       }
-      if (bufferIn.position() == 0) {
-        silentlyClose();
+      if (interestOps == 0) {
+        shutdownAndClose();
         return;
       }
       key.interestOps(interestOps);
     }
 
-    private void silentlyClose() {
+    private static int pendingBytes(ByteBuffer buffer) {
+      return buffer == null ? 0 : buffer.position();
+    }
+
+    /**
+     * Gives buffer back to the pool if it holds no pending bytes
+     *
+     * @param buffer a buffer in write-mode, possibly null
+     * @return buffer if it is still in use, null if it was given back
+     */
+    private ByteBuffer releaseIfDrained(ByteBuffer buffer) {
+      if (buffer != null && buffer.position() == 0) {
+        pool.release(buffer);
+        return null;
+      }
+      return buffer;
+    }
+
+    @Override
+    public int inputBytes() {
+      return pendingBytes(bufferIn);
+    }
+
+    @Override
+    public long outputBytes() {
+      return pendingBytes(bufferOut);
+    }
+
+    @Override
+    public void drain() {
+      closed = true;
+      process();
+      if (sc.isOpen()) {
+        updateInterestOps();
+      }
+    }
+
+    /**
+     * Called once the client has shut down its output and everything has been
+     * sent: the output is shut down too, so that the client reads the end of
+     * stream just after the last bytes, then the socket is closed.
+     */
+    private void shutdownAndClose() {
+      try {
+        sc.shutdownOutput();
+      } catch (IOException e) {
+        // the client is already gone, nothing left to tell it
+      }
+      silentlyClose();
+    }
+
+    @Override
+    public void silentlyClose() {
+      if (Trace.ENABLED) {
+        trace.record(Trace.CLOSE, System.identityHashCode(sc), 0);
+      }
+      timers.cancel(idleTimer);
+      if (bufferIn != null) {
+        pool.release(bufferIn);
+        bufferIn = null;
+      }
+      if (bufferOut != null) {
+        pool.release(bufferOut);
+        bufferOut = null;
+      }
       try {
         sc.close();
       } catch (IOException e) {
@@ -83,9 +194,19 @@ public class ServerSumBetter {
      */
 
     private void doRead() throws IOException {
-      if (sc.read(bufferIn) == -1){
+      timers.touch(idleTimer);
+      if (bufferIn == null) {
+        bufferIn = pool.acquire();
+      }
+      var read = sc.read(bufferIn);
+      metrics.recordRead(read);
+      if (read == -1) {
         closed = true;
       }
+      process();
+      bufferIn = releaseIfDrained(bufferIn);
+      // the answers usually fit in the send buffer: write them now rather than waiting for OP_WRITE
+      doWrite();
     }
 
     /**
@@ -98,44 +219,98 @@ public class ServerSumBetter {
      */
 
     private void doWrite() throws IOException {
+      timers.touch(idleTimer);
+      if (bufferOut != null) {
+        bufferOut.flip();
+        metrics.recordWritten(sc.write(bufferOut));
+        bufferOut.compact();
+        bufferOut = releaseIfDrained(bufferOut);
+      }
       process();
-      bufferOut.flip();
-      sc.write(bufferOut);
-      bufferOut.compact();
       updateInterestOps();
     }
 
   }
 
   private static final int BUFFER_SIZE = 1024;
+  private static final int REQUEST_SIZE = 2 * Integer.BYTES;
+  private static final int BUFFERS_PER_SLAB = 256;
+  private static final long IDLE_TIMEOUT = 60_000; // milliseconds
   private static final Logger logger = Logger.getLogger(ServerSumBetter.class.getName());
 
   private final ServerSocketChannel serverSocketChannel;
   private final Selector selector;
+  private final TimingWheel idleTimers = new TimingWheel(IDLE_TIMEOUT);
+  private final Trace trace = new Trace(ServerSumBetter.class.getSimpleName());
+  private final SelectorStats stats = new SelectorStats(ServerSumBetter.class.getSimpleName());
+  private final AdminConsole console = new AdminConsole(ServerSumBetter.class.getSimpleName(), trace, stats);
+  private LoopMetrics metrics; // of the single-thread loop, created by launch()
+  private LoopControl control; // of the single-thread loop, created by launch()
+  private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, BUFFERS_PER_SLAB);
 
   public ServerSumBetter(int port) throws IOException {
     serverSocketChannel = ServerSocketChannel.open();
     serverSocketChannel.bind(new InetSocketAddress(port));
     selector = Selector.open();
+    console.addInfo(bufferPool::toString);
   }
 
   public void launch() throws IOException {
     serverSocketChannel.configureBlocking(false);
     serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-    while (!Thread.interrupted()) {
-      Helpers.printKeys(selector); // for debug
-      System.out.println("Starting select");
+    metrics = stats.newLoop("main");
+    var keyHandler = metrics.measure(this::treatKey);
+    control = new LoopControl("main", selector);
+    console.addLoop(control);
+    while (!Thread.interrupted() && control.isRunning()) {
+      if (Trace.ENABLED) {
+        trace.record(Trace.SELECT_START, 0, 0);
+      }
+      metrics.beforeSelect();
       try {
-        selector.select(this::treatKey);
+        var selected = selector.select(keyHandler, idleTimers.timeUntilNextTick());
+        metrics.afterSelect();
+        if (Trace.ENABLED) {
+          trace.record(Trace.SELECT_END, 0, selected);
+        }
       } catch (UncheckedIOException tunneled) {
         throw tunneled.getCause();
       }
-      System.out.println("Select finished");
+      control.runCommands();
+      idleTimers.advance();
     }
   }
 
+  /**
+   * Runs the server in multi-reactor mode: the current thread accepts the clients
+   * and hands them round-robin to nbReactors worker selectors, each running
+   * treatKey on its own Contexts.
+   *
+   * @param nbReactors
+   * @throws IOException
+   */
+  public void launch(int nbReactors) throws IOException {
+    launch(nbReactors, ReactorPool.Strategy.ROUND_ROBIN);
+  }
+
+  /**
+   * Runs the server in multi-reactor mode, handing the accepted clients to the
+   * worker selectors according to strategy.
+   *
+   * @param nbReactors
+   * @param strategy
+   * @throws IOException
+   */
+  void launch(int nbReactors, ReactorPool.Strategy strategy) throws IOException {
+    new ReactorPool(serverSocketChannel, nbReactors, strategy, trace, stats, console,
+            IDLE_TIMEOUT, this::treatKey,
+            (reactor, key) -> new Context(bufferPool, reactor.timers(), reactor.metrics(), reactor.trace(), key)).launch();
+  }
+
   private void treatKey(SelectionKey key) {
-    Helpers.printSelectedKey(key); // for debug
+    if (Trace.ENABLED) {
+      trace.recordKey(key);
+    }
     try {
       if (key.isValid() && key.isAcceptable()) {
         doAccept(key);
@@ -163,13 +338,22 @@ public class ServerSumBetter {
       // toujours vérifier si la tentative a échoué !
       // auquel cas il faut attendre d'être à nouveau notifié
     } else {
+      if (Trace.ENABLED) {
+        trace.record(Trace.ACCEPT, System.identityHashCode(sc), 0);
+      }
       sc.configureBlocking(false);
+      // answers are small and pipelined: do not let Nagle hold them back
+      sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
       var clientKey = sc.register(selector, SelectionKey.OP_READ);
-      clientKey.attach(new Context(clientKey));
+      clientKey.attach(new Context(bufferPool, idleTimers, metrics, trace, clientKey));
     }
   }
 
   private void silentlyClose(SelectionKey key) {
+    if (key.attachment() instanceof Context context) {
+      context.silentlyClose();
+      return;
+    }
     Channel sc = (Channel) key.channel();
     try {
       sc.close();
@@ -178,15 +362,42 @@ public class ServerSumBetter {
     }
   }
 
+  Trace trace() {
+    return trace;
+  }
+
+  SelectorStats stats() {
+    return stats;
+  }
+
+  AdminConsole console() {
+    return console;
+  }
+
   public static void main(String[] args) throws NumberFormatException, IOException {
-    if (args.length != 1) {
+    if (args.length < 1 || args.length > 3) {
       usage();
       return;
     }
-    new ServerSumBetter(Integer.parseInt(args[0])).launch();
+    var strategy = ReactorPool.Strategy.ROUND_ROBIN;
+    if (args.length == 3) {
+      try {
+        strategy = ReactorPool.Strategy.valueOf(args[2].toUpperCase());
+      } catch (IllegalArgumentException e) {
+        usage();
+        return;
+      }
+    }
+    var server = new ServerSumBetter(Integer.parseInt(args[0]));
+    server.console().start();
+    if (args.length >= 2) {
+      server.launch(Integer.parseInt(args[1]), strategy);
+    } else {
+      server.launch();
+    }
   }
 
   private static void usage() {
-    System.out.println("Usage : ServerSumBetter port");
+    System.out.println("Usage : ServerSumBetter port [nbReactors [ROUND_ROBIN|LEAST_LOADED]]");
   }
 }
\ No newline at end of file
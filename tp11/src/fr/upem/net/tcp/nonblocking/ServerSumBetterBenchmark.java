@@ -0,0 +1,108 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Measures the requests/second of ServerSumBetter when a client pipelines its
+ * requests: the client sends depth requests back to back, then reads the depth
+ * answers, and starts again. It also counts the wake-ups of the selector, per
+ * request and then per second while IDLE_CLIENTS connections stay silent.
+ */
+public class ServerSumBetterBenchmark {
+
+  private static final Logger logger = Logger.getLogger(ServerSumBetterBenchmark.class.getName());
+  private static final int[] DEPTHS = { 1, 16, 256, 4096 };
+  private static final int REQUESTS = 1 << 20; // a multiple of every depth
+  private static final int IDLE_CLIENTS = 1_000;
+
+  private static long run(InetSocketAddress server, int depth) throws IOException {
+    var random = new Random(depth);
+    var requests = ByteBuffer.allocate(depth * 2 * Integer.BYTES);
+    var answers = ByteBuffer.allocate(depth * Integer.BYTES);
+    var expected = new int[depth];
+    var start = System.nanoTime();
+    try (var sc = SocketChannel.open(server)) {
+      for (var done = 0; done < REQUESTS; done += depth) {
+        requests.clear();
+        for (var i = 0; i < depth; i++) {
+          var a = random.nextInt();
+          var b = random.nextInt();
+          requests.putInt(a).putInt(b);
+          expected[i] = a + b;
+        }
+        requests.flip();
+        while (requests.hasRemaining()) {
+          sc.write(requests);
+        }
+        answers.clear();
+        while (answers.hasRemaining()) {
+          if (sc.read(answers) == -1) {
+            throw new IOException("Server closed the connection");
+          }
+        }
+        answers.flip();
+        for (var i = 0; i < depth; i++) {
+          if (answers.getInt() != expected[i]) {
+            throw new IllegalStateException("Wrong sum for request " + (done + i));
+          }
+        }
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length != 1 && args.length != 2) {
+      usage();
+      return;
+    }
+    var port = Integer.parseInt(args[0]);
+    var server = new ServerSumBetter(port);
+    var serverThread = Thread.ofPlatform().daemon().start(() -> {
+      try {
+        if (args.length == 2) {
+          server.launch(Integer.parseInt(args[1]));
+        } else {
+          server.launch();
+        }
+      } catch (IOException e) {
+        logger.severe("Server stopped : " + e);
+      }
+    });
+    var address = new InetSocketAddress("localhost", port);
+    run(address, 16); // warm-up
+    for (var depth : DEPTHS) {
+      var wakeups = server.stats().wakeups();
+      var nanos = run(address, depth);
+      wakeups = server.stats().wakeups() - wakeups;
+      System.out.printf("depth %5d : %,12.0f requests/s, %6.3f wake-ups/request%n", depth, REQUESTS * 1e9 / nanos,
+              (double) wakeups / REQUESTS);
+    }
+    // idle connections must not wake the selector up, apart from the ticks of the idle timers
+    var idleClients = new ArrayList<SocketChannel>();
+    try {
+      for (var i = 0; i < IDLE_CLIENTS; i++) {
+        idleClients.add(SocketChannel.open(address));
+      }
+      Thread.sleep(200);
+      server.stats().wakeupsPerSecond();
+      Thread.sleep(2_000);
+      System.out.printf("%d idle clients : %.1f wake-ups/s%n", IDLE_CLIENTS, server.stats().wakeupsPerSecond());
+    } finally {
+      for (var sc : idleClients) {
+        sc.close();
+      }
+    }
+    serverThread.interrupt();
+  }
+
+  private static void usage() {
+    System.out.println("Usage : ServerSumBetterBenchmark port [nbReactors]");
+  }
+}
@@ -13,6 +13,7 @@ public class ServerSumOneShot {
 
   private final ServerSocketChannel serverSocketChannel;
   private final Selector selector;
+  private final Trace trace = new Trace(ServerSumOneShot.class.getSimpleName());
 
   public ServerSumOneShot(int port) throws IOException {
     serverSocketChannel = ServerSocketChannel.open();
@@ -24,15 +25,20 @@ public class ServerSumOneShot {
     serverSocketChannel.configureBlocking(false);
     serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
     while (!Thread.interrupted()) {
-      Helpers.printKeys(selector); // for debug
-      System.out.println("Starting select");
-      selector.select(this::treatKey);
-      System.out.println("Select finished");
+      if (Trace.ENABLED) {
+        trace.record(Trace.SELECT_START, 0, 0);
+      }
+      var selected = selector.select(this::treatKey);
+      if (Trace.ENABLED) {
+        trace.record(Trace.SELECT_END, 0, selected);
+      }
     }
   }
 
   private void treatKey(SelectionKey key) {
-    Helpers.printSelectedKey(key); // for debug
+    if (Trace.ENABLED) {
+      trace.recordKey(key);
+    }
     if (key.isValid() && key.isAcceptable()) {
       try {
         doAccept(key);
@@ -63,6 +69,9 @@ public class ServerSumOneShot {
       // toujours vérifier si la tentative a échoué !
       // auquel cas il faut attendre d'être à nouveau notifié
     } else {
+      if (Trace.ENABLED) {
+        trace.record(Trace.ACCEPT, System.identityHashCode(sc), 0);
+      }
       sc.configureBlocking(false);
       sc.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(BUFFER_SIZE));
     }
@@ -73,7 +82,7 @@ public class ServerSumOneShot {
     var sc = (SocketChannel) key.channel();
 
     if (sc.read(buffer) == -1){
-      sc.close();
+      silentlyClose(key);
       return;
     }
 
@@ -100,6 +109,9 @@ public class ServerSumOneShot {
 
   private void silentlyClose(SelectionKey key) {
     var sc = (Channel) key.channel();
+    if (Trace.ENABLED) {
+      trace.record(Trace.CLOSE, System.identityHashCode(sc), 0);
+    }
     try {
       sc.close();
     } catch (IOException e) {
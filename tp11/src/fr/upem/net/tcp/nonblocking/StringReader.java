@@ -0,0 +1,96 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader of a string sent as the int size of its UTF-8 encoding followed by the
+ * encoded bytes.
+ * <p>
+ * A size that is negative or larger than maxSize, or bytes that are not valid
+ * UTF-8, are an ERROR. The bytes are gathered in an internal buffer of maxSize
+ * bytes and decoded by a reused CharsetDecoder into a CharBuffer of maxSize
+ * chars, both allocated once: only the String returned by get is created for
+ * each value.
+ */
+final class StringReader implements Reader<String> {
+
+  private enum State {
+    DONE, WAITING_SIZE, WAITING_BYTES, ERROR
+  }
+
+  private final IntReader sizeReader = new IntReader();
+  private final ByteBuffer internalBuffer;
+  private final CharBuffer chars; // UTF-8 never decodes to more chars than bytes
+  private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+  private State state = State.WAITING_SIZE;
+  private String value;
+
+  /**
+   * @param maxSize the maximum number of bytes of an encoded string
+   */
+  StringReader(int maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("maxSize must be positive");
+    }
+    internalBuffer = ByteBuffer.allocate(maxSize);
+    chars = CharBuffer.allocate(maxSize);
+  }
+
+  @Override
+  public ProcessStatus process(ByteBuffer buffer) {
+    if (state == State.DONE || state == State.ERROR) {
+      throw new IllegalStateException();
+    }
+    if (state == State.WAITING_SIZE) {
+      if (sizeReader.process(buffer) == ProcessStatus.REFILL) {
+        return ProcessStatus.REFILL;
+      }
+      var size = sizeReader.value();
+      if (size < 0 || size > internalBuffer.capacity()) {
+        state = State.ERROR;
+        return ProcessStatus.ERROR;
+      }
+      internalBuffer.limit(size);
+      state = State.WAITING_BYTES;
+    }
+    var length = Math.min(internalBuffer.remaining(), buffer.remaining());
+    internalBuffer.put(internalBuffer.position(), buffer, buffer.position(), length);
+    internalBuffer.position(internalBuffer.position() + length);
+    buffer.position(buffer.position() + length);
+    if (internalBuffer.hasRemaining()) {
+      return ProcessStatus.REFILL;
+    }
+    decoder.reset();
+    chars.clear();
+    var result = decoder.decode(internalBuffer.flip(), chars, true);
+    if (!result.isError()) {
+      result = decoder.flush(chars);
+    }
+    if (result.isError()) {
+      state = State.ERROR;
+      return ProcessStatus.ERROR;
+    }
+    value = chars.flip().toString();
+    state = State.DONE;
+    return ProcessStatus.DONE;
+  }
+
+  @Override
+  public String get() {
+    if (state != State.DONE) {
+      throw new IllegalStateException();
+    }
+    return value;
+  }
+
+  @Override
+  public void reset() {
+    state = State.WAITING_SIZE;
+    sizeReader.reset();
+    internalBuffer.clear();
+    value = null;
+  }
+}
@@ -0,0 +1,139 @@
+package fr.upem.net.tcp.nonblocking;
+
+import fr.upem.net.tcp.nonblocking.Reader.ProcessStatus;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * <p>
+ * Tests suit for the class StringReader
+ */
+public class StringReaderTest {
+
+  /**
+   * @return the size of the UTF-8 encoding of string followed by the encoding, in write-mode
+   */
+  private static ByteBuffer encode(String string) {
+    var bytes = string.getBytes(StandardCharsets.UTF_8);
+    return ByteBuffer.allocate(Integer.BYTES + bytes.length).putInt(bytes.length).put(bytes);
+  }
+
+  /**
+   * Test for a string entirely in the buffer, followed by other bytes
+   */
+  @Test
+  public void testSimple() {
+    var buffer = encode("€a€é").flip();
+    buffer = ByteBuffer.allocate(buffer.remaining() + 2).put(buffer).put((byte) 1).put((byte) 2).flip();
+    var reader = new StringReader(1_024);
+    assertEquals(ProcessStatus.DONE, reader.process(buffer));
+    assertEquals("€a€é", reader.get());
+    assertEquals(2, buffer.remaining());
+  }
+
+  /**
+   * Test for a string split across several process calls, one byte at a time
+   */
+  @Test
+  public void testSplit() {
+    var string = "Un message déjà coupé 😀 en morceaux";
+    var buffer = encode(string).flip();
+    var reader = new StringReader(1_024);
+    var piece = ByteBuffer.allocate(1);
+    while (buffer.remaining() > 1) {
+      piece.clear().put(buffer.get()).flip();
+      assertEquals(ProcessStatus.REFILL, reader.process(piece));
+      assertFalse(piece.hasRemaining());
+    }
+    piece.clear().put(buffer.get()).flip();
+    assertEquals(ProcessStatus.DONE, reader.process(piece));
+    assertEquals(string, reader.get());
+  }
+
+  /**
+   * Test for a character whose UTF-8 bytes are split between two process calls
+   */
+  @Test
+  public void testSplitCharacter() {
+    var buffer = encode("x€").flip(); // € is 3 bytes
+    var reader = new StringReader(16);
+    var first = buffer.slice(0, buffer.limit() - 2);
+    var second = buffer.slice(buffer.limit() - 2, 2);
+    assertEquals(ProcessStatus.REFILL, reader.process(first));
+    assertEquals(ProcessStatus.DONE, reader.process(second));
+    assertEquals("x€", reader.get());
+  }
+
+  /**
+   * Test for several strings read in a row with the same reader
+   */
+  @Test
+  public void testReset() {
+    var buffer = ByteBuffer.allocate(1_024);
+    buffer.put(encode("first").flip()).put(encode("").flip()).put(encode("third").flip()).flip();
+    var reader = new StringReader(8);
+    for (var expected : new String[]{"first", "", "third"}) {
+      assertEquals(ProcessStatus.DONE, reader.process(buffer));
+      assertEquals(expected, reader.get());
+      reader.reset();
+    }
+    assertFalse(buffer.hasRemaining());
+  }
+
+  /**
+   * Test for a string the size of maxSize
+   */
+  @Test
+  public void testMaxSize() {
+    var reader = new StringReader(5);
+    assertEquals(ProcessStatus.DONE, reader.process(encode("12345").flip()));
+    assertEquals("12345", reader.get());
+  }
+
+  /**
+   * Test for a size larger than maxSize
+   */
+  @Test
+  public void testTooLarge() {
+    var reader = new StringReader(4);
+    assertEquals(ProcessStatus.ERROR, reader.process(encode("12345").flip()));
+  }
+
+  /**
+   * Test for a negative size
+   */
+  @Test
+  public void testNegativeSize() {
+    var reader = new StringReader(4);
+    assertEquals(ProcessStatus.ERROR, reader.process(ByteBuffer.allocate(Integer.BYTES).putInt(-1).flip()));
+  }
+
+  /**
+   * Test for bytes which are not valid UTF-8
+   */
+  @Test
+  public void testMalformed() {
+    var buffer = ByteBuffer.allocate(6).putInt(2).put((byte) 0xC3).put((byte) 0x28).flip();
+    var reader = new StringReader(4);
+    assertEquals(ProcessStatus.ERROR, reader.process(buffer));
+    reader.reset();
+    assertEquals(ProcessStatus.DONE, reader.process(encode("ok").flip()));
+    assertEquals("ok", reader.get());
+  }
+
+  /**
+   * Test for the calls out of order
+   */
+  @Test
+  public void testIllegalState() {
+    var reader = new StringReader(4);
+    assertThrows(IllegalStateException.class, reader::get);
+    assertEquals(ProcessStatus.DONE, reader.process(encode("ok").flip()));
+    assertThrows(IllegalStateException.class, () -> reader.process(encode("ok").flip()));
+  }
+}
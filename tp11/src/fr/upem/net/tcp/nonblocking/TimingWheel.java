@@ -0,0 +1,176 @@
+package fr.upem.net.tcp.nonblocking;
+
+/**
+ * Hashed timing wheel closing the connections that have been inactive for
+ * longer than a timeout.
+ * <p>
+ * The wheel has one slot per tick, each slot being a doubly-linked list of
+ * timers, so scheduling, touching and cancelling a timer are O(1). Touching a
+ * timer only records the time of the activity: the timer stays in its slot and
+ * is moved to the slot of its new deadline when its old slot expires. Advancing
+ * the wheel only visits the slots whose tick has elapsed, never all the timers.
+ * <p>
+ * The wheel is confined to the thread of its selector, which should call
+ * advance after each select and use timeUntilNextTick as the select timeout.
+ */
+final class TimingWheel {
+
+  /**
+   * The inactivity timer of a connection.
+   */
+  static final class Timer {
+    private final Runnable onExpire;
+    private long lastActivity;
+    private Timer prev;
+    private Timer next;
+    private int slot = -1; // -1 when the timer is not scheduled
+
+    Timer(Runnable onExpire) {
+      this.onExpire = onExpire;
+    }
+  }
+
+  private static final int DEFAULT_TICKS_PER_TIMEOUT = 32;
+
+  private final long timeout;
+  private final long tick;
+  private final Timer[] slots;
+  private final int mask;
+  private long currentTick; // the last tick whose slot has been processed
+  private int size;
+
+  /**
+   * @param timeout the inactivity timeout in milliseconds
+   * @param tick the precision of the wheel in milliseconds
+   */
+  TimingWheel(long timeout, long tick) {
+    if (timeout < 1 || tick < 1) {
+      throw new IllegalArgumentException("timeout and tick must be positive");
+    }
+    this.timeout = timeout;
+    this.tick = tick;
+    // one turn of the wheel must cover the timeout so that each slot holds a single round
+    var nbSlots = Integer.highestOneBit((int) Math.min(1 << 30, timeout / tick + 1)) << 1;
+    this.slots = new Timer[nbSlots];
+    this.mask = nbSlots - 1;
+    this.currentTick = clock() / tick;
+  }
+
+  /**
+   * @param timeout the inactivity timeout in milliseconds, checked with a
+   *                precision of 1/DEFAULT_TICKS_PER_TIMEOUT of the timeout
+   */
+  TimingWheel(long timeout) {
+    this(timeout, Math.max(1, timeout / DEFAULT_TICKS_PER_TIMEOUT));
+  }
+
+  private static long clock() {
+    return System.nanoTime() / 1_000_000;
+  }
+
+  /**
+   * Schedules timer to expire after timeout milliseconds of inactivity
+   *
+   * @param timer
+   */
+  void schedule(Timer timer) {
+    if (timer.slot != -1) {
+      unlink(timer);
+    }
+    timer.lastActivity = clock();
+    link(timer, timer.lastActivity + timeout);
+  }
+
+  /**
+   * Records an activity of the connection of timer
+   *
+   * @param timer
+   */
+  void touch(Timer timer) {
+    timer.lastActivity = clock();
+  }
+
+  /**
+   * Removes timer from the wheel, does nothing if it is not scheduled
+   *
+   * @param timer
+   */
+  void cancel(Timer timer) {
+    if (timer.slot != -1) {
+      unlink(timer);
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return the timeout to give to select so that the wheel is advanced at the
+   *         next tick, 0 (no timeout) if there is no timer
+   */
+  long timeUntilNextTick() {
+    if (size == 0) {
+      return 0;
+    }
+    var current = clock();
+    return Math.max(1, (current / tick + 1) * tick - current);
+  }
+
+  /**
+   * Processes the slots of all the ticks elapsed since the last call: expired
+   * timers run their onExpire, the others are moved to the slot of their new
+   * deadline.
+   */
+  void advance() {
+    var now = clock();
+    var nowTick = now / tick;
+    // after a long stall, visiting each slot once is enough
+    var firstTick = Math.max(currentTick + 1, nowTick - mask);
+    currentTick = nowTick; // timers rescheduled below must go after nowTick
+    for (var t = firstTick; t <= nowTick; t++) {
+      var slot = (int) (t & mask);
+      var timer = slots[slot];
+      slots[slot] = null;
+      while (timer != null) {
+        var next = timer.next;
+        timer.prev = timer.next = null;
+        timer.slot = -1;
+        size--;
+        var deadline = timer.lastActivity + timeout;
+        if (deadline <= now) {
+          timer.onExpire.run();
+        } else {
+          link(timer, deadline);
+        }
+        timer = next;
+      }
+    }
+  }
+
+  private void link(Timer timer, long deadline) {
+    // a slot already processed would only be seen again after a full turn
+    var slot = (int) (Math.max(deadline / tick, currentTick + 1) & mask);
+    timer.slot = slot;
+    timer.next = slots[slot];
+    if (timer.next != null) {
+      timer.next.prev = timer;
+    }
+    slots[slot] = timer;
+    size++;
+  }
+
+  private void unlink(Timer timer) {
+    if (timer.prev != null) {
+      timer.prev.next = timer.next;
+    } else {
+      slots[timer.slot] = timer.next;
+    }
+    if (timer.next != null) {
+      timer.next.prev = timer.prev;
+    }
+    timer.prev = timer.next = null;
+    timer.slot = -1;
+    size--;
+  }
+}
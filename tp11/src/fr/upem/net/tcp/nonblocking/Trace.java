@@ -0,0 +1,140 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.PrintStream;
+import java.nio.channels.SelectionKey;
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Structured trace of the selector loops, replacing the debug printing.
+ * <p>
+ * Tracing is enabled with -Dfr.upem.net.trace=true. Every call site is guarded by
+ * the static final ENABLED so that the JIT removes it when tracing is off. When
+ * on, each event is stored as a fixed number of longs in a ring buffer, without
+ * allocation nor I/O; the ring can be dumped on demand with the TRACE command of
+ * the AdminConsole of the server. With -Dfr.upem.net.trace.exit=n, the n most
+ * recent events are also dumped on the standard error when the JVM exits.
+ */
+final class Trace {
+  static final boolean ENABLED = Boolean.getBoolean("fr.upem.net.trace");
+  static final int EXIT_EVENTS = Integer.getInteger("fr.upem.net.trace.exit", 0); // 0 for no dump on exit
+
+  static final int SELECT_START = 1;
+  static final int SELECT_END = 2; // arg: number of keys selected
+  static final int KEY_SELECTED = 3; // arg: ready operations
+  static final int ACCEPT = 4;
+  static final int CLOSE = 5;
+
+  private static final int DEFAULT_CAPACITY = 1 << 16;
+  private static final int EVENT_SIZE = 4; // time, type, channel id, arg
+
+  private final String name;
+  private final long[] ring;
+  private final int mask;
+  private final AtomicLong next = new AtomicLong();
+
+  /**
+   * @param name the name printed in the dump
+   * @param capacity the number of events kept, must be a power of 2
+   */
+  Trace(String name, int capacity) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("capacity must be a power of 2");
+    }
+    if (!ENABLED) {
+      capacity = 1; // nothing is ever recorded
+    }
+    this.name = name;
+    this.ring = new long[capacity * EVENT_SIZE];
+    this.mask = capacity - 1;
+    if (ENABLED && EXIT_EVENTS > 0) {
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> dump(System.err, EXIT_EVENTS)));
+    }
+  }
+
+  Trace(String name) {
+    this(name, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Records an event. Can be called concurrently by several selector threads.
+   *
+   * @param type one of the event constants
+   * @param id an identifier of the channel, 0 if none
+   * @param arg an argument depending on type
+   */
+  void record(int type, int id, long arg) {
+    var offset = (int) (next.getAndIncrement() & mask) * EVENT_SIZE;
+    ring[offset] = System.nanoTime();
+    ring[offset + 1] = type;
+    ring[offset + 2] = id;
+    ring[offset + 3] = arg;
+  }
+
+  void recordKey(SelectionKey key) {
+    record(KEY_SELECTED, System.identityHashCode(key.channel()), key.isValid() ? key.readyOps() : -1);
+  }
+
+  /**
+   * @return the number of events kept by the ring
+   */
+  int capacity() {
+    return mask + 1;
+  }
+
+  /**
+   * Prints the count most recent events of the ring, oldest first. Can be called
+   * by any thread while the selector threads keep recording; events recorded
+   * during the dump may show up partially overwritten.
+   *
+   * @param out
+   * @param count at most capacity() events are printed
+   */
+  void dump(PrintStream out, int count) {
+    if (count < 0) {
+      throw new IllegalArgumentException("count must be positive");
+    }
+    var end = next.get();
+    var start = Math.max(0, end - Math.min(capacity(), count));
+    out.println("Trace " + name + " : " + (end - start) + " events (" + end + " recorded)");
+    for (var i = start; i < end; i++) {
+      var offset = (int) (i & mask) * EVENT_SIZE;
+      out.println("\t" + ring[offset] + " " + typeToString((int) ring[offset + 1])
+              + " channel=" + Integer.toHexString((int) ring[offset + 2])
+              + " " + argToString((int) ring[offset + 1], ring[offset + 3]));
+    }
+  }
+
+  private static String typeToString(int type) {
+    return switch (type) {
+      case SELECT_START -> "SELECT_START";
+      case SELECT_END -> "SELECT_END";
+      case KEY_SELECTED -> "KEY_SELECTED";
+      case ACCEPT -> "ACCEPT";
+      case CLOSE -> "CLOSE";
+      default -> "UNKNOWN(" + type + ")";
+    };
+  }
+
+  private static String argToString(int type, long arg) {
+    return switch (type) {
+      case SELECT_END -> "selected=" + arg;
+      case KEY_SELECTED -> "ready=" + readyOpsToString((int) arg);
+      default -> "";
+    };
+  }
+
+  private static String readyOpsToString(int readyOps) {
+    if (readyOps == -1) {
+      return "CANCELLED";
+    }
+    var joiner = new StringJoiner("|");
+    if ((readyOps & SelectionKey.OP_ACCEPT) != 0)
+      joiner.add("ACCEPT");
+    if ((readyOps & SelectionKey.OP_READ) != 0)
+      joiner.add("READ");
+    if ((readyOps & SelectionKey.OP_WRITE) != 0)
+      joiner.add("WRITE");
+    return joiner.toString();
+  }
+}
@@ -10,6 +10,7 @@ import java.util.logging.Logger;
 public class ClientLongSum {
 
   public static final Logger logger = Logger.getLogger(ClientLongSum.class.getName());
+  private static final int BUFFER_SIZE = 8192;
 
   private static List<Long> randomLongList(int size) {
     return new Random().longs(size).boxed().toList();
@@ -32,15 +33,35 @@ public class ClientLongSum {
    * @throws IOException
    */
   private static Long requestSumForList(SocketChannel sc, List<Long> list) throws IOException {
+    return requestSum(sc, list.size(), list.stream().mapToLong(Long::longValue).iterator());
+  }
 
-    var buffer = ByteBuffer.allocate(Long.BYTES * list.size() + Integer.BYTES);
+  /**
+   * Write size longs taken from values in BigEndian on the server and read the
+   * long sent by the server and returns it. The longs are sent by chunks of
+   * BUFFER_SIZE bytes, so the memory used does not depend on size.
+   *
+   * returns null if the protocol is not followed by the server but no
+   * IOException is thrown
+   *
+   * @param sc
+   * @param size
+   * @param values
+   * @return
+   * @throws IOException
+   */
+  static Long requestSum(SocketChannel sc, int size, PrimitiveIterator.OfLong values) throws IOException {
+    var buffer = ByteBuffer.allocate(BUFFER_SIZE);
 
-    buffer.putInt(list.size());
-    for(var l : list){
-      buffer.putLong(l);
+    buffer.putInt(size);
+    for (var i = 0; i < size; i++) {
+      if (buffer.remaining() < Long.BYTES) {
+        writeFully(sc, buffer.flip());
+        buffer.clear();
+      }
+      buffer.putLong(values.nextLong());
     }
-    buffer.flip();
-    sc.write(buffer);
+    writeFully(sc, buffer.flip());
 
     var sumBuffer = ByteBuffer.allocate(Long.BYTES);
 
@@ -56,6 +77,12 @@ public class ClientLongSum {
     return sum;
   }
 
+  private static void writeFully(SocketChannel sc, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      sc.write(buffer);
+    }
+  }
+
   static boolean readFully(SocketChannel sc, ByteBuffer buffer) throws IOException {
     while (buffer.hasRemaining()){
       if (sc.read(buffer) == -1){
@@ -79,6 +106,19 @@ public class ClientLongSum {
           logger.warning("Oups! Something wrong happened!");
         }
       }
+      if (args.length == 3) {
+        // one large request whose longs are generated while they are sent
+        var size = Integer.parseInt(args[2]);
+        var seed = new Random().nextLong();
+        var sum = requestSum(sc, size, new Random(seed).longs(size).iterator());
+        if (sum == null) {
+          logger.warning("Connection with server lost.");
+          return;
+        }
+        if (new Random(seed).longs(size).sum() != sum) {
+          logger.warning("Oups! Something wrong happened!");
+        }
+      }
       logger.info("Everything seems ok");
     }
   }
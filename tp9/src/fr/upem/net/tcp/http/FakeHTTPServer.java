@@ -6,12 +6,18 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 public class FakeHTTPServer {
   private final ServerSocketChannel ssc;
   private final int port;
   private final ByteBuffer content;
   private final Thread thread;
+  private final AtomicInteger acceptedConnections = new AtomicInteger();
 
   public FakeHTTPServer(String s, int max) throws IOException {
     ssc = ServerSocketChannel.open();
@@ -79,6 +85,130 @@ public class FakeHTTPServer {
     });
   }
 
+  /**
+   * Server for HTTP keep-alive: it accepts any number of connections, each one
+   * served by its own threads which read the requests in order and answer each
+   * one with the response computed by responder from its request line, delay
+   * milliseconds after the request was received. So pipelined requests are
+   * answered in order too.
+   * A connection is closed by the server after a response containing a
+   * "Connection: close" field.
+   *
+   * @param responder computes the whole response (header and body) to a request line
+   * @param delay the time in milliseconds between a request and its response
+   * @throws IOException
+   */
+  public FakeHTTPServer(Function<String, String> responder, long delay) throws IOException {
+    ssc = ServerSocketChannel.open();
+    ssc.bind(null);
+    var address = (InetSocketAddress) ssc.getLocalAddress();
+    port = address.getPort();
+    content = null;
+    var clients = new ConcurrentLinkedQueue<SocketChannel>();
+    this.thread = new Thread(() -> {
+      try {
+        while (!Thread.interrupted()) {
+          var sc = ssc.accept();
+          acceptedConnections.incrementAndGet();
+          clients.add(sc);
+          Thread.ofPlatform().daemon().start(() -> serveKeepAlive(sc, responder, delay));
+        }
+      } catch (Exception e) {
+        //
+      } finally {
+        try {
+          for (var sc : clients) {
+            sc.close();
+          }
+          ssc.close();
+        } catch (Exception e) {
+          //
+        }
+      }
+    });
+  }
+
+  private record DelayedResponse(long sendTime, String response) {
+    private static final DelayedResponse END = new DelayedResponse(0, null);
+
+    private boolean closesConnection() {
+      return response.toLowerCase().contains("\r\nconnection: close\r\n");
+    }
+  }
+
+  /**
+   * The current thread reads the requests while another thread sends their
+   * responses, each one delay milliseconds after its request was received: the
+   * delay behaves like a latency, so pipelined requests wait for it only once.
+   * <p>
+   * After a response closing the connection, the output is shut down but the
+   * requests already pipelined by the client are still read, and ignored, until
+   * the client closes: closing with unread requests would reset the connection
+   * and destroy the responses the client has not read yet.
+   */
+  private static void serveKeepAlive(SocketChannel sc, Function<String, String> responder, long delay) {
+    var responses = new LinkedBlockingQueue<DelayedResponse>();
+    var sender = Thread.ofPlatform().daemon().start(() -> sendResponses(sc, responses));
+    try (sc) {
+      try {
+        var reader = new HTTPReader(sc, ByteBuffer.allocate(1_024));
+        var closing = false;
+        while (true) {
+          var requestLine = reader.readLineCRLF();
+          while (!reader.readLineCRLF().isEmpty()) {
+            // the fields of the request are ignored
+          }
+          if (closing) {
+            continue;
+          }
+          var response = new DelayedResponse(System.nanoTime() + delay * 1_000_000, responder.apply(requestLine));
+          responses.add(response);
+          closing = response.closesConnection();
+        }
+      } catch (Exception e) {
+        // the client closed the connection or the server is shut down
+      }
+      responses.add(DelayedResponse.END);
+      sender.join();
+    } catch (Exception e) {
+      //
+    }
+  }
+
+  private static void sendResponses(SocketChannel sc, LinkedBlockingQueue<DelayedResponse> responses) {
+    try {
+      while (true) {
+        var response = responses.take();
+        if (response == DelayedResponse.END) {
+          return;
+        }
+        var wait = response.sendTime() - System.nanoTime();
+        if (wait > 0) {
+          Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+        var buffer = StandardCharsets.ISO_8859_1.encode(response.response());
+        while (buffer.hasRemaining()) {
+          sc.write(buffer);
+        }
+        if (response.closesConnection()) {
+          sc.shutdownOutput();
+          return;
+        }
+      }
+    } catch (Exception e) {
+      // the client closed the connection or the server is shut down
+    }
+  }
+
+  /**
+   * @param body
+   * @return a HTTP/1.1 response with status 200 and body, framed by its Content-Length
+   */
+  public static String response(String body) {
+    return "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: "
+            + body.getBytes(StandardCharsets.ISO_8859_1).length + "\r\n\r\n" + body;
+  }
+
   public void serve() {
     thread.start();
   }
@@ -90,4 +220,11 @@ public class FakeHTTPServer {
   public int getPort() {
     return port;
   }
+
+  /**
+   * @return the number of connections accepted so far by a keep-alive server
+   */
+  public int getAcceptedConnections() {
+    return acceptedConnections.get();
+  }
 }
\ No newline at end of file
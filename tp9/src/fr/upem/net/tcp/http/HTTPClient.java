@@ -0,0 +1,380 @@
+package fr.upem.net.tcp.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * HTTP/1.1 client keeping its connections alive between requests.
+ * <p>
+ * The connections to each host are kept in a pool: a request reuses an idle
+ * connection if there is one, opens a new one if the host has less than
+ * maxConnectionsPerHost connections, and waits for a connection to be released
+ * otherwise. A connection is only given back to the pool once the body of its
+ * response has been entirely read, which the HTTPReader of the connection knows
+ * from the Content-Length or the chunks; a response whose body ends with the
+ * connection, or which asks to close it, closes it. The connections idle for
+ * more than idleTimeout are closed when the pool of their host is used.
+ * <p>
+ * The methods can be called by several threads.
+ */
+public class HTTPClient implements AutoCloseable {
+
+  /**
+   * @param header the header of the response
+   * @param body the body of the response, in write-mode
+   */
+  public record Response(HTTPHeader header, ByteBuffer body) {
+  }
+
+  private static class Connection {
+    private final SocketChannel sc;
+    private final HTTPReader reader; // its buffer keeps the bytes received after a response for the next one
+    private int responses; // number of responses entirely read on this connection
+    private long lastUse;
+
+    private Connection(SocketChannel sc) {
+      this.sc = sc;
+      this.reader = new HTTPReader(sc, ByteBuffer.allocate(BUFFER_SIZE));
+    }
+
+    private void silentlyClose() {
+      try {
+        sc.close();
+      } catch (IOException e) {
+        // ignore exception
+      }
+    }
+  }
+
+  /**
+   * The connections to one host. All the fields are guarded by lock.
+   */
+  private static class HostPool {
+    private final ArrayDeque<Connection> idle = new ArrayDeque<>(); // the most recently used last
+    private int connections; // idle or in use
+  }
+
+  private static final Logger logger = Logger.getLogger(HTTPClient.class.getName());
+  private static final int BUFFER_SIZE = 8_192;
+
+  private final int maxConnectionsPerHost;
+  private final long idleTimeout;
+  private final Object lock = new Object();
+  private final HashMap<InetSocketAddress, HostPool> pools = new HashMap<>();
+  private long connectionsOpened; // guarded by lock
+  private boolean closed; // guarded by lock
+
+  /**
+   * @param maxConnectionsPerHost the maximum number of connections opened to one host
+   * @param idleTimeout the time in milliseconds after which an idle connection is closed
+   */
+  public HTTPClient(int maxConnectionsPerHost, long idleTimeout) {
+    if (maxConnectionsPerHost < 1) {
+      throw new IllegalArgumentException("maxConnectionsPerHost < 1 is not accepted");
+    }
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Sends a GET request for resource to host and reads its response.
+   * <p>
+   * If a reused connection turns out to have been closed by the server before
+   * the header of the response could be read, the request is sent again once on
+   * a new connection, as GET is idempotent.
+   *
+   * @param host
+   * @param port
+   * @param resource
+   * @return the response
+   * @throws IOException
+   * @throws InterruptedException if interrupted while waiting for a connection
+   */
+  public Response get(String host, int port, String resource) throws IOException, InterruptedException {
+    var address = new InetSocketAddress(host, port);
+    var request = request(host, resource);
+    var connection = acquire(address, true);
+    HTTPHeader header;
+    try {
+      header = sendRequest(connection, request);
+    } catch (IOException e) {
+      if (connection.responses == 0) {
+        discard(address, connection);
+        throw e;
+      }
+      logger.info("Stale connection to " + address + ", retrying on a new connection");
+      discard(address, connection);
+      connection = acquire(address, false);
+      try {
+        header = sendRequest(connection, request.rewind());
+      } catch (IOException e2) {
+        discard(address, connection);
+        throw e2;
+      }
+    }
+    try {
+      var body = readBody(connection.reader, header);
+      connection.responses++;
+      if (isReusable(header)) {
+        release(address, connection);
+      } else {
+        discard(address, connection);
+      }
+      return new Response(header, body);
+    } catch (IOException e) {
+      discard(address, connection);
+      throw e;
+    }
+  }
+
+  /**
+   * Sends GET requests for resources to host pipelined on one connection: up to
+   * window requests are written back to back before their responses are read,
+   * and a new request is written each time a response has been read, so the
+   * latency of the link is paid about once per window instead of once per
+   * request.
+   * <p>
+   * The responses are read in order with the HTTPReader of the connection. If
+   * the server closes the connection before answering every request (after a
+   * response with "Connection: close" for instance), the requests without
+   * response are sent again on another connection, as GET is idempotent.
+   * <p>
+   * The requests are small and window is bounded, so they fit in the send
+   * buffer of the socket while the server answers the previous ones.
+   *
+   * @param host
+   * @param port
+   * @param resources
+   * @param window the maximum number of requests sent without response
+   * @return the responses, in the order of resources
+   * @throws IOException
+   * @throws InterruptedException if interrupted while waiting for a connection
+   */
+  public List<Response> getPipelined(String host, int port, List<String> resources, int window)
+          throws IOException, InterruptedException {
+    if (window < 1) {
+      throw new IllegalArgumentException("window < 1 is not accepted");
+    }
+    var address = new InetSocketAddress(host, port);
+    var responses = new ArrayList<Response>(resources.size());
+    while (responses.size() < resources.size()) {
+      var connection = acquire(address, true);
+      var answeredBefore = responses.size();
+      var sent = responses.size(); // the requests before sent have been written on connection
+      try {
+        var reusable = true;
+        while (reusable && responses.size() < resources.size()) {
+          while (sent < resources.size() && sent - responses.size() < window) {
+            writeFully(connection.sc, request(host, resources.get(sent)));
+            sent++;
+          }
+          var header = connection.reader.readHeader();
+          responses.add(new Response(header, readBody(connection.reader, header)));
+          connection.responses++;
+          reusable = isReusable(header);
+        }
+        if (reusable) {
+          release(address, connection);
+        } else {
+          discard(address, connection);
+        }
+      } catch (IOException e) {
+        var stale = connection.responses > responses.size() - answeredBefore; // answered before this call
+        discard(address, connection);
+        if (responses.size() == answeredBefore && !stale) {
+          throw e;
+        }
+        logger.info("Connection to " + address + " closed with " + (sent - responses.size())
+                + " requests without response, sending them again");
+      }
+    }
+    return responses;
+  }
+
+  private static ByteBuffer request(String host, String resource) {
+    return StandardCharsets.US_ASCII.encode("GET " + resource + " HTTP/1.1\r\n" + "Host: " + host + "\r\n" + "\r\n");
+  }
+
+  private static void writeFully(SocketChannel sc, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      sc.write(buffer);
+    }
+  }
+
+  private static HTTPHeader sendRequest(Connection connection, ByteBuffer request) throws IOException {
+    writeFully(connection.sc, request);
+    return connection.reader.readHeader();
+  }
+
+  private static ByteBuffer readBody(HTTPReader reader, HTTPHeader header) throws IOException {
+    if (!hasBody(header)) {
+      return ByteBuffer.allocate(0);
+    }
+    if (header.isChunkedTransfer()) {
+      return reader.readChunks();
+    }
+    var contentLength = header.getContentLength();
+    if (contentLength >= 0) {
+      return reader.readBytes(contentLength);
+    }
+    // the body ends with the connection
+    var body = reader.bodyChannel(header);
+    var content = ByteBuffer.allocate(BUFFER_SIZE);
+    while (body.read(content) != -1) {
+      if (!content.hasRemaining()) {
+        var bigger = ByteBuffer.allocate(content.capacity() * 2);
+        content = bigger.put(content.flip());
+      }
+    }
+    return content;
+  }
+
+  private static boolean hasBody(HTTPHeader header) {
+    var code = header.getCode();
+    return code >= 200 && code != 204 && code != 304;
+  }
+
+  /**
+   * @return true if the connection can carry another request once the body of
+   *         this response has been read
+   */
+  private static boolean isReusable(HTTPHeader header) throws HTTPException {
+    var connection = header.getFields().getOrDefault("connection", "").toLowerCase();
+    if (connection.contains("close")) {
+      return false;
+    }
+    if (hasBody(header) && !header.isChunkedTransfer() && header.getContentLength() < 0) {
+      return false; // the body was delimited by the end of the connection
+    }
+    return header.getVersion().equals("HTTP/1.1") || connection.contains("keep-alive");
+  }
+
+  /**
+   * @param allowIdle whether an idle connection can be returned
+   * @return a connection to address, counted in the connections of its pool
+   */
+  private Connection acquire(InetSocketAddress address, boolean allowIdle) throws IOException, InterruptedException {
+    synchronized (lock) {
+      while (true) {
+        if (closed) {
+          throw new IllegalStateException("client closed");
+        }
+        var pool = pools.computeIfAbsent(address, __ -> new HostPool());
+        evictIdle(pool);
+        if (allowIdle && !pool.idle.isEmpty()) {
+          return pool.idle.pollLast();
+        }
+        if (pool.connections < maxConnectionsPerHost) {
+          pool.connections++;
+          connectionsOpened++;
+          break;
+        }
+        if (!allowIdle && !pool.idle.isEmpty()) {
+          pool.idle.pollFirst().silentlyClose(); // make room for a new connection
+          pool.connections--;
+          continue;
+        }
+        lock.wait();
+      }
+    }
+    try {
+      var sc = SocketChannel.open(address);
+      sc.setOption(StandardSocketOptions.TCP_NODELAY, true); // pipelined requests are small writes
+      return new Connection(sc);
+    } catch (IOException e) {
+      synchronized (lock) {
+        pools.get(address).connections--;
+        lock.notifyAll();
+      }
+      throw e;
+    }
+  }
+
+  private void release(InetSocketAddress address, Connection connection) {
+    synchronized (lock) {
+      if (closed) {
+        connection.silentlyClose();
+        return;
+      }
+      connection.lastUse = System.currentTimeMillis();
+      pools.get(address).idle.addLast(connection);
+      lock.notifyAll();
+    }
+  }
+
+  private void discard(InetSocketAddress address, Connection connection) {
+    connection.silentlyClose();
+    synchronized (lock) {
+      pools.get(address).connections--;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Closes the idle connections of pool which have not been used for idleTimeout.
+   * Must be called holding lock.
+   */
+  private void evictIdle(HostPool pool) {
+    var now = System.currentTimeMillis();
+    while (!pool.idle.isEmpty() && now - pool.idle.peekFirst().lastUse >= idleTimeout) {
+      pool.idle.pollFirst().silentlyClose();
+      pool.connections--;
+    }
+  }
+
+  /**
+   * @return the number of connections opened since the creation of the client
+   */
+  public long connectionsOpened() {
+    synchronized (lock) {
+      return connectionsOpened;
+    }
+  }
+
+  /**
+   * Closes the idle connections, the connections in use are closed when released
+   */
+  @Override
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      for (var pool : pools.values()) {
+        pool.idle.forEach(Connection::silentlyClose);
+        pool.connections -= pool.idle.size();
+        pool.idle.clear();
+      }
+      lock.notifyAll();
+    }
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length < 3) {
+      usage();
+      return;
+    }
+    var host = args[0];
+    var port = Integer.parseInt(args[1]);
+    try (var client = new HTTPClient(4, 30_000)) {
+      for (var i = 2; i < args.length; i++) {
+        var start = System.nanoTime();
+        var response = client.get(host, port, args[i]);
+        System.out.println(response.header().getResponse() + " " + args[i] + " : " + response.body().position()
+                + " bytes in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+      }
+      System.out.println(client.connectionsOpened() + " connection(s) opened for " + (args.length - 2) + " requests");
+    }
+  }
+
+  private static void usage() {
+    System.out.println("Usage : HTTPClient host port resource...");
+  }
+}
@@ -0,0 +1,166 @@
+package fr.upem.net.tcp.http;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * <p>
+ * Tests suit for the class HTTPClient
+ */
+public class HTTPClientTest {
+
+  private static String resource(String requestLine) {
+    return requestLine.split(" ")[1];
+  }
+
+  private static String body(HTTPClient.Response response) {
+    return StandardCharsets.ISO_8859_1.decode(response.body().flip()).toString();
+  }
+
+  /**
+   * Test that the requests to a host reuse the same connection, with bodies
+   * framed by their Content-Length or by chunks
+   */
+  @Test
+  public void testKeepAlive() throws IOException, InterruptedException {
+    FakeHTTPServer server = new FakeHTTPServer(requestLine -> {
+      var resource = resource(requestLine);
+      if (resource.startsWith("/chunked")) {
+        return "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nchunk\r\n3\r\ned \r\n"
+                + Integer.toHexString(resource.length()) + "\r\n" + resource + "\r\n0\r\n\r\n";
+      }
+      return FakeHTTPServer.response("content of " + resource);
+    }, 0);
+    try (var client = new HTTPClient(4, 10_000)) {
+      server.serve();
+      for (var i = 0; i < 10; i++) {
+        assertEquals("content of /" + i, body(client.get("localhost", server.getPort(), "/" + i)));
+        assertEquals("chunked /chunked" + i, body(client.get("localhost", server.getPort(), "/chunked" + i)));
+      }
+      assertEquals(1, server.getAcceptedConnections());
+      assertEquals(1, client.connectionsOpened());
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  /**
+   * Test that a connection is not reused after a response asking to close it
+   */
+  @Test
+  public void testConnectionClose() throws IOException, InterruptedException {
+    FakeHTTPServer server = new FakeHTTPServer(requestLine -> "HTTP/1.1 200 OK\r\nConnection: close\r\n"
+            + "Content-Length: 2\r\n\r\nOK", 0);
+    try (var client = new HTTPClient(4, 10_000)) {
+      server.serve();
+      for (var i = 0; i < 3; i++) {
+        assertEquals("OK", body(client.get("localhost", server.getPort(), "/")));
+      }
+      assertEquals(3, client.connectionsOpened());
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  /**
+   * Test that no more than maxConnectionsPerHost connections are opened by
+   * concurrent requests
+   */
+  @Test
+  public void testMaxConnectionsPerHost() throws Exception {
+    FakeHTTPServer server = new FakeHTTPServer(requestLine -> FakeHTTPServer.response(resource(requestLine)), 50);
+    var executor = Executors.newFixedThreadPool(8);
+    try (var client = new HTTPClient(2, 10_000)) {
+      server.serve();
+      var tasks = new ArrayList<Callable<String>>();
+      for (var i = 0; i < 16; i++) {
+        var resource = "/" + i;
+        tasks.add(() -> body(client.get("localhost", server.getPort(), resource)));
+      }
+      var results = executor.invokeAll(tasks);
+      for (var i = 0; i < results.size(); i++) {
+        try {
+          assertEquals("/" + i, results.get(i).get());
+        } catch (ExecutionException e) {
+          fail(e.getCause().toString());
+        }
+      }
+      assertEquals(2, server.getAcceptedConnections());
+    } finally {
+      executor.shutdown();
+      server.shutdown();
+    }
+  }
+
+  /**
+   * Test that a connection idle for more than the idle timeout is not reused
+   */
+  @Test
+  public void testIdleEviction() throws IOException, InterruptedException {
+    FakeHTTPServer server = new FakeHTTPServer(requestLine -> FakeHTTPServer.response("OK"), 0);
+    try (var client = new HTTPClient(4, 50)) {
+      server.serve();
+      assertEquals("OK", body(client.get("localhost", server.getPort(), "/")));
+      assertEquals("OK", body(client.get("localhost", server.getPort(), "/")));
+      assertEquals(1, client.connectionsOpened());
+      Thread.sleep(150);
+      assertEquals("OK", body(client.get("localhost", server.getPort(), "/")));
+      assertEquals(2, client.connectionsOpened());
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  /**
+   * Test that pipelined requests are answered in order on one connection
+   */
+  @Test
+  public void testPipelined() throws IOException, InterruptedException {
+    FakeHTTPServer server = new FakeHTTPServer(requestLine -> FakeHTTPServer.response(resource(requestLine)), 20);
+    try (var client = new HTTPClient(4, 10_000)) {
+      server.serve();
+      var resources = IntStream.range(0, 50).mapToObj(i -> "/" + i).toList();
+      var responses = client.getPipelined("localhost", server.getPort(), resources, 8);
+      assertEquals(resources, responses.stream().map(HTTPClientTest::body).toList());
+      assertEquals(1, server.getAcceptedConnections());
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  /**
+   * Test that the pipelined requests left without response by a server closing
+   * the connection are sent again on a new connection
+   */
+  @Test
+  public void testPipelinedConnectionClose() throws IOException, InterruptedException {
+    var count = new AtomicInteger();
+    FakeHTTPServer server = new FakeHTTPServer(requestLine -> {
+      var body = resource(requestLine);
+      if (count.incrementAndGet() % 5 == 0) {
+        return "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+      }
+      return FakeHTTPServer.response(body);
+    }, 0);
+    try (var client = new HTTPClient(4, 10_000)) {
+      server.serve();
+      var resources = IntStream.range(0, 23).mapToObj(i -> "/" + i).toList();
+      var responses = client.getPipelined("localhost", server.getPort(), resources, 8);
+      assertEquals(resources, responses.stream().map(HTTPClientTest::body).toList());
+      assertEquals(5, server.getAcceptedConnections());
+    } finally {
+      server.shutdown();
+    }
+  }
+}
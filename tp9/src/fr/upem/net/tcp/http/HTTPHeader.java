@@ -32,6 +32,19 @@ public class HTTPHeader {
   }
 
   public static HTTPHeader create(String response, Map<String, String> fields) throws HTTPException {
+    var fieldsCopied = new HashMap<String, String>();
+    for (var s : fields.keySet()) {
+      fieldsCopied.put(s.toLowerCase(), fields.get(s).trim());
+    }
+    return createNormalized(response, fieldsCopied);
+  }
+
+  /**
+   * Same as create for fields whose names are already lower-cased and whose
+   * values are already trimmed, as read by HTTPReader: the map is not copied and
+   * must not be modified afterwards.
+   */
+  static HTTPHeader createNormalized(String response, Map<String, String> fields) throws HTTPException {
     String[] tokens = response.split(" ");
     // Treatment of the response line
     ensure(tokens.length >= 2, "Badly formed response:\n" + response);
@@ -44,11 +57,7 @@ public class HTTPHeader {
     } catch (NumberFormatException e) {
       ensure(false, "Invalid response:\n" + response);
     }
-    var fieldsCopied = new HashMap<String, String>();
-    for (var s : fields.keySet()) {
-      fieldsCopied.put(s.toLowerCase(), fields.get(s).trim());
-    }
-    return new HTTPHeader(response, version, code, fieldsCopied);
+    return new HTTPHeader(response, version, code, fields);
   }
 
   public String getResponse() {
@@ -84,6 +93,26 @@ public class HTTPHeader {
     }
   }
 
+  /**
+   * Same as getContentLength for the bodies which do not have to fit in memory,
+   * like the ones streamed by HTTPReader.bodyChannel
+   *
+   * @return the value of the Content-Length field in the header -1 if the field
+   *         does not exists
+   * @throws HTTPException when the value of Content-Length is not a number
+   */
+  public long getContentLengthLong() throws HTTPException {
+    var contentString = fields.get("content-length");
+    if (contentString == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(contentString.trim());
+    } catch (NumberFormatException e) {
+      throw new HTTPException("Invalid Content-Length field value :\n" + contentString);
+    }
+  }
+
   /**
    * @return the Content-Type null if there is no Content-Type field
    */
@@ -0,0 +1,39 @@
+package fr.upem.net.tcp.http;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Throughput of HTTPClient.getPipelined according to the window, against a
+ * FakeHTTPServer answering each request after a delay which plays the part of
+ * the round-trip time of the link. Without pipelining (window 1) a request costs
+ * one delay; with a window of N, about N requests share each delay.
+ */
+public class HTTPPipeliningBenchmark {
+  private static final int[] WINDOWS = { 1, 2, 4, 8, 16, 32, 64 };
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    var delay = args.length > 0 ? Long.parseLong(args[0]) : 20; // milliseconds
+    var nbRequests = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+    var body = "x".repeat(1_024);
+    var server = new FakeHTTPServer(requestLine -> FakeHTTPServer.response(body), delay);
+    server.serve();
+    List<String> resources = IntStream.range(0, nbRequests).mapToObj(i -> "/" + i).toList();
+    System.out.printf("%d requests, %d ms between a request and its response%n", nbRequests, delay);
+    try (var client = new HTTPClient(1, 60_000)) {
+      client.get("localhost", server.getPort(), "/warmup");
+      for (var window : WINDOWS) {
+        var start = System.nanoTime();
+        var responses = client.getPipelined("localhost", server.getPort(), resources, window);
+        var elapsed = System.nanoTime() - start;
+        if (responses.size() != nbRequests) {
+          throw new AssertionError("missing responses");
+        }
+        System.out.printf("window %3d : %8.1f requests/s%n", window, nbRequests * 1e9 / elapsed);
+      }
+    } finally {
+      server.shutdown();
+    }
+  }
+}
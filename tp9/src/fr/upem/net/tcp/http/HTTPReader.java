@@ -3,15 +3,27 @@ package fr.upem.net.tcp.http;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 
 public class HTTPReader {
 
   private final Charset ASCII_CHARSET = Charset.forName("ASCII");
+  private static final long CR_BYTES = 0x0D0D0D0D0D0D0D0DL;
+  private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+  private static final String[] KNOWN_FIELDS = { "accept-ranges", "age", "cache-control", "connection",
+      "content-encoding", "content-length", "content-type", "date", "etag", "expires", "last-modified", "location",
+      "server", "set-cookie", "transfer-encoding", "vary" };
   private final SocketChannel sc;
   private final ByteBuffer buffer;
+  private byte[] line = new byte[128]; // the bytes of the last line read, reused from line to line
 
   public HTTPReader(SocketChannel sc, ByteBuffer buffer) {
     this.sc = sc;
@@ -28,32 +40,93 @@ public class HTTPReader {
    *                     could be read
    */
   public String readLineCRLF() throws IOException {
-    var sb = new StringBuffer();
-    while (true){
+    var length = readLine();
+    return new String(line, 0, length, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Reads a line terminated by CRLF into line, without the CRLF.
+   * <p>
+   * The CRLF is searched in the whole content of buffer at once by indexOfCRLF,
+   * then the bytes of the line are copied in bulk: no object is allocated, except
+   * when line has to grow for a line longer than all the previous ones.
+   *
+   * @return the number of bytes of the line in line
+   * @throws IOException HTTPException if the connection is closed before a line
+   *                     could be read
+   */
+  private int readLine() throws IOException {
+    var length = 0;
+    while (true) {
       buffer.flip();
-      byte first;
-      byte second;
-
-      while (buffer.hasRemaining()){
-        first = buffer.get();
-        if (first == '\r' && buffer.hasRemaining() ){
-          second = buffer.get();
-          if (second == '\n'){
-            buffer.compact();
-            return sb.toString();
-          }
-          sb.append((char) first);
-          sb.append((char) second);
-        } else {
-          sb.append((char) first);
-        }
+      if (length > 0 && line[length - 1] == '\r' && buffer.hasRemaining() && buffer.get(buffer.position()) == '\n') {
+        // the CR was the last byte of the previous read
+        buffer.get();
+        buffer.compact();
+        return length - 1;
+      }
+      var end = indexOfCRLF(buffer, buffer.position(), buffer.limit());
+      if (end >= 0) {
+        length = appendToLine(length, end - buffer.position());
+        buffer.position(end + 2);
+        buffer.compact();
+        return length;
       }
+      length = appendToLine(length, buffer.remaining());
       buffer.clear();
       if (sc.read(buffer) == -1) {
         throw new HTTPException("Connection closed");
       }
     }
+  }
+
+  /**
+   * Moves size bytes from buffer (in read mode) to line after its first length
+   * bytes
+   *
+   * @return the new length of the line
+   */
+  private int appendToLine(int length, int size) {
+    if (length + size > line.length) {
+      line = Arrays.copyOf(line, Math.max(2 * line.length, length + size));
+    }
+    buffer.get(line, length, size);
+    return length + size;
+  }
 
+  /**
+   * Searches a CR followed by a LF in buffer, 8 bytes at a time: a long is read
+   * from the buffer, the bytes equal to CR are turned into 0 by a xor and the
+   * zero bytes are detected with a few arithmetic operations (SWAR). The
+   * detection is exact, so the first match is the first CR of the long.
+   *
+   * @param buffer a buffer whose content is not modified
+   * @param from the absolute index where the search starts
+   * @param to the absolute index where the search stops (excluded)
+   * @return the absolute index of the CR, -1 if there is no CRLF
+   */
+  static int indexOfCRLF(ByteBuffer buffer, int from, int to) {
+    var bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+    var i = from;
+    while (i + Long.BYTES <= to) {
+      var word = buffer.getLong(i) ^ CR_BYTES;
+      var zeros = ~(((word & LOW_BITS) + LOW_BITS) | word | LOW_BITS); // high bit of each zero byte
+      if (zeros == 0) {
+        i += Long.BYTES;
+        continue;
+      }
+      var cr = i + (bigEndian ? Long.numberOfLeadingZeros(zeros) : Long.numberOfTrailingZeros(zeros)) / Byte.SIZE;
+      if (cr + 1 < to && buffer.get(cr + 1) == '\n') {
+        return cr;
+      }
+      i = cr + 1;
+    }
+    for (; i + 1 < to; i++) {
+      if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+        return i;
+      }
+    }
+    return -1;
   }
 
   /**
@@ -63,17 +136,74 @@ public class HTTPReader {
    */
   public HTTPHeader readHeader() throws IOException {
     var response = readLineCRLF();
-    var fields = new HashMap<String, String>();
-    String headerLine;
+    var fields = new HashMap<String, String>(32);
     while (true) {
-      headerLine = readLineCRLF();
-      if (headerLine.isEmpty()) {
+      var length = readLine();
+      if (length == 0) {
         break;
       }
-      var header = headerLine.split(":", 2);
-      fields.merge(header[0].toLowerCase(), header[1], (a, b) -> a + "; " + b);
+      // the field is parsed in line itself: only the name (when unknown) and the value become Strings
+      var colon = indexOf(line, (byte) ':', length);
+      if (colon < 0) {
+        throw new HTTPException("Badly formed header field:\n"
+                + new String(line, 0, length, StandardCharsets.ISO_8859_1));
+      }
+      var name = fieldName(colon);
+      var start = colon + 1;
+      var end = length;
+      while (start < end && isWhitespace(line[start])) {
+        start++;
+      }
+      while (end > start && isWhitespace(line[end - 1])) {
+        end--;
+      }
+      var value = new String(line, start, end - start, StandardCharsets.ISO_8859_1);
+      fields.merge(name, value, (a, b) -> a + "; " + b);
     }
-    return HTTPHeader.create(response, fields);
+    return HTTPHeader.createNormalized(response, fields);
+  }
+
+  /**
+   * @param length the length of the name at the start of line
+   * @return the name lower-cased, the names of KNOWN_FIELDS are not allocated
+   */
+  private String fieldName(int length) {
+    for (var i = 0; i < length; i++) {
+      if (line[i] >= 'A' && line[i] <= 'Z') {
+        line[i] += 'a' - 'A';
+      }
+    }
+    for (var known : KNOWN_FIELDS) {
+      if (lineStartsWith(known, length)) {
+        return known;
+      }
+    }
+    return new String(line, 0, length, StandardCharsets.ISO_8859_1);
+  }
+
+  private boolean lineStartsWith(String name, int length) {
+    if (name.length() != length) {
+      return false;
+    }
+    for (var i = 0; i < length; i++) {
+      if (line[i] != name.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int indexOf(byte[] bytes, byte b, int length) {
+    for (var i = 0; i < length; i++) {
+      if (bytes[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t';
   }
 
   /**
@@ -88,50 +218,233 @@ public class HTTPReader {
    */
   public ByteBuffer readBytes(int size) throws IOException {
     var newBuffer = ByteBuffer.allocate(size);
+    readFully(newBuffer);
+    return newBuffer;
+  }
 
-    while (newBuffer.hasRemaining()){
-      buffer.flip();
-      while (buffer.hasRemaining()){
-        var b = buffer.get();
-        newBuffer.put(b);
-        if (!newBuffer.hasRemaining()){
-          buffer.compact();
-          return newBuffer;
-        }
-      }
-      buffer.clear();
-      if (sc.read(buffer) == -1){
-        break;
+  /**
+   * Fills dst: the bytes already in buffer are moved with one bulk copy, then the
+   * socket is read directly into dst, without going through buffer.
+   *
+   * @param dst a buffer in write mode
+   * @throws IOException HTTPException is the connection is closed before dst is
+   *                     full
+   */
+  private void readFully(ByteBuffer dst) throws IOException {
+    buffer.flip();
+    var size = Math.min(buffer.remaining(), dst.remaining());
+    dst.put(buffer.slice(buffer.position(), size));
+    buffer.position(buffer.position() + size);
+    buffer.compact();
+    while (dst.hasRemaining()) {
+      if (sc.read(dst) == -1) {
+        throw new HTTPException("Connection closed");
       }
     }
-    buffer.compact();
-    return newBuffer;
   }
 
   /**
+   * The chunks are read each in its own buffer, directly from the socket for
+   * their part which is not already in buffer, and copied once into the returned
+   * buffer at the end (a single chunk is returned as is). So the time is linear
+   * in the size of the content, whatever the number of chunks.
+   *
    * @return a ByteBuffer in write-mode containing a content read in chunks mode
    * @throws IOException HTTPException if the connection is closed before the end
    *                     of the chunks if chunks are ill-formed
    */
 
   public ByteBuffer readChunks() throws IOException {
-    // TODO
-    var size = -1;
-    ByteBuffer chunksBuffer = ByteBuffer.allocate(0);
-    while (size != 0){
-      var line = readLineCRLF();
-      size = Integer.parseInt(line, 16);
-      var newBuffer = readBytes(size);
-      readBytes(2);
-      newBuffer.flip();
-      chunksBuffer.flip();
-      var tmp = ByteBuffer.allocate(chunksBuffer.remaining() + newBuffer.remaining());
-      tmp.put(chunksBuffer);
-      tmp.put(newBuffer);
-      chunksBuffer = tmp;
-      newBuffer.flip();
-    }
-    return chunksBuffer;
+    var chunks = new ArrayList<ByteBuffer>();
+    var total = 0L;
+    int size;
+    while ((size = readChunkSize()) != 0) {
+      total += size;
+      HTTPException.ensure(total <= Integer.MAX_VALUE, "Chunked content too large");
+      chunks.add(readBytes(size));
+      HTTPException.ensure(readLine() == 0, "Chunk not followed by CRLF");
+    }
+    while (readLine() != 0) {
+      // trailer fields are ignored
+    }
+    if (chunks.size() == 1) {
+      return chunks.get(0);
+    }
+    var content = ByteBuffer.allocate((int) total);
+    for (var chunk : chunks) {
+      content.put(chunk.flip());
+    }
+    return content;
+  }
+
+  /**
+   * @return the size of the next chunk, read from its chunk-size line whose
+   *         extensions are ignored
+   * @throws IOException HTTPException if the size is not a valid hexadecimal int
+   */
+  private int readChunkSize() throws IOException {
+    var length = readLine();
+    var size = 0L;
+    var digits = 0;
+    for (; digits < length && line[digits] != ';'; digits++) {
+      var digit = Character.digit(line[digits], 16);
+      if (digit < 0) {
+        break;
+      }
+      size = size * 16 + digit;
+      HTTPException.ensure(size <= Integer.MAX_VALUE, "Chunk too large");
+    }
+    var end = digits;
+    while (end < length && isWhitespace(line[end])) {
+      end++;
+    }
+    HTTPException.ensure(digits > 0 && (end == length || line[end] == ';'),
+            "Invalid chunk size:\n" + new String(line, 0, length, StandardCharsets.ISO_8859_1));
+    return (int) size;
+  }
+
+  /**
+   * Returns the body of the response of header as a channel, which reads the
+   * socket only when its read is called and at most the bytes asked for: the
+   * body can be copied anywhere (e.g. with FileChannel.transferFrom) in constant
+   * memory whatever its size. The body is delimited according to header: by its
+   * Content-Length, by its chunks (decoded on the fly) or by the end of the
+   * connection.
+   * <p>
+   * The reader must not be used while the body is being read. Once the channel
+   * has returned -1, buffer only holds the bytes following the body. Closing the
+   * channel does not close the socket.
+   *
+   * @param header the header of the response, just read by readHeader
+   * @return a channel over the body of the response
+   * @throws HTTPException if the Content-Length of header is invalid
+   */
+  public ReadableByteChannel bodyChannel(HTTPHeader header) throws HTTPException {
+    if (header.isChunkedTransfer()) {
+      return new ChunkedBody();
+    }
+    var contentLength = header.getContentLengthLong();
+    if (contentLength >= 0) {
+      return new FixedLengthBody(contentLength);
+    }
+    return new UntilCloseBody();
+  }
+
+  private abstract class Body implements ReadableByteChannel {
+    private boolean open = true;
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+      if (!dst.hasRemaining()) {
+        return 0;
+      }
+      return readBody(dst);
+    }
+
+    /**
+     * @param dst a buffer with some room
+     * @return the number of bytes read, -1 at the end of the body
+     */
+    abstract int readBody(ByteBuffer dst) throws IOException;
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() {
+      open = false;
+    }
+  }
+
+  private class FixedLengthBody extends Body {
+    private long remaining;
+
+    private FixedLengthBody(long length) {
+      this.remaining = length;
+    }
+
+    @Override
+    int readBody(ByteBuffer dst) throws IOException {
+      if (remaining == 0) {
+        return -1;
+      }
+      var read = transfer(dst, remaining);
+      if (read == -1) {
+        throw new HTTPException("Connection closed");
+      }
+      remaining -= read;
+      return read;
+    }
+  }
+
+  private class ChunkedBody extends Body {
+    private int chunkRemaining;
+    private boolean firstChunk = true;
+    private boolean done;
+
+    @Override
+    int readBody(ByteBuffer dst) throws IOException {
+      if (done) {
+        return -1;
+      }
+      if (chunkRemaining == 0) {
+        if (!firstChunk) {
+          HTTPException.ensure(readLine() == 0, "Chunk not followed by CRLF");
+        }
+        firstChunk = false;
+        chunkRemaining = readChunkSize();
+        if (chunkRemaining == 0) {
+          while (readLine() != 0) {
+            // trailer fields are ignored
+          }
+          done = true;
+          return -1;
+        }
+      }
+      var read = transfer(dst, chunkRemaining);
+      if (read == -1) {
+        throw new HTTPException("Connection closed");
+      }
+      chunkRemaining -= read;
+      return read;
+    }
+  }
+
+  private class UntilCloseBody extends Body {
+    @Override
+    int readBody(ByteBuffer dst) throws IOException {
+      return transfer(dst, Long.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Moves at most max bytes into dst: the bytes already in buffer if there are
+   * some, otherwise the bytes of one read of the socket made directly into dst.
+   *
+   * @return the number of bytes moved, -1 if the connection is closed
+   */
+  private int transfer(ByteBuffer dst, long max) throws IOException {
+    var size = (int) Math.min(dst.remaining(), max);
+    if (buffer.position() > 0) {
+      buffer.flip();
+      size = Math.min(size, buffer.remaining());
+      dst.put(buffer.slice(buffer.position(), size));
+      buffer.position(buffer.position() + size);
+      buffer.compact();
+      return size;
+    }
+    var limit = dst.limit();
+    dst.limit(dst.position() + size);
+    try {
+      return sc.read(dst);
+    } finally {
+      dst.limit(limit);
+    }
   }
 
   public static void main(String[] args) throws IOException {
@@ -5,6 +5,7 @@ import org.junit.jupiter.api.Test;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 
@@ -102,6 +103,86 @@ public class HTTPReaderTest {
     server.shutdown();
   }
 
+  /**
+   * Test for ReadLineLFCR with a fake server whose CR and LF arrive in two
+   * different reads, and with a line longer than the buffer
+   * @throws java.io.IOException
+   */
+  @Test
+  public void testLineReaderLFCR5() throws IOException {
+    FakeHTTPServer server = new FakeHTTPServer("Line1\r\nA line much longer than the buffer\r\nEnd\r\n", 6);
+    try {
+      server.serve();
+      SocketChannel sc = SocketChannel.open();
+      sc.connect(new InetSocketAddress("localhost", server.getPort()));
+      HTTPReader reader = new HTTPReader(sc, ByteBuffer.allocate(12));
+      assertEquals("Line1", reader.readLineCRLF());
+      assertEquals("A line much longer than the buffer", reader.readLineCRLF());
+      assertEquals("End", reader.readLineCRLF());
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  /**
+   * Test for indexOfCRLF at every position of a buffer, including bytes just
+   * below CR that a naive SWAR search could report
+   */
+  @Test
+  public void testIndexOfCRLF() {
+    for (var size = 2; size < 40; size++) {
+      for (var index = 0; index + 1 < size; index++) {
+        var bytes = new byte[size];
+        java.util.Arrays.fill(bytes, (byte) 0x0C);
+        bytes[index] = '\r';
+        bytes[index + 1] = '\n';
+        if (index > 1) {
+          bytes[index - 2] = '\r'; // a lone CR before the CRLF
+        }
+        assertEquals(index, HTTPReader.indexOfCRLF(ByteBuffer.wrap(bytes), 0, size));
+        assertEquals(index, HTTPReader.indexOfCRLF(ByteBuffer.wrap(bytes).order(java.nio.ByteOrder.LITTLE_ENDIAN), 0, size));
+        assertEquals(-1, HTTPReader.indexOfCRLF(ByteBuffer.wrap(bytes), index + 1, size));
+        assertEquals(-1, HTTPReader.indexOfCRLF(ByteBuffer.wrap(bytes), 0, index + 1));
+      }
+    }
+  }
+
+  /**
+   * Test for readHeader with a fake server
+   * @throws java.io.IOException
+   */
+  @Test
+  public void testReadHeader() throws IOException {
+    FakeHTTPServer server = new FakeHTTPServer("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nX-Custom:  a \r\n"
+            + "x-custom: b\r\nContent-Type: text/html; charset=utf-8\r\n\r\nhello", 10);
+    try {
+      server.serve();
+      SocketChannel sc = SocketChannel.open();
+      sc.connect(new InetSocketAddress("localhost", server.getPort()));
+      var buff = ByteBuffer.allocate(12);
+      HTTPReader reader = new HTTPReader(sc, buff);
+      var header = reader.readHeader();
+      assertEquals(200, header.getCode());
+      assertEquals(5, header.getContentLength());
+      assertEquals("a; b", header.getFields().get("x-custom"));
+      assertEquals("text/html", header.getContentType().orElseThrow());
+      assertEquals(StandardCharsets.UTF_8, header.getCharset().orElseThrow());
+      assertEquals("hello", StandardCharsets.US_ASCII.decode(reader.readBytes(5).flip()).toString());
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  /**
+   * Test for readHeader with a field without colon
+   */
+  @Test
+  public void testReadHeaderIllFormed() throws IOException {
+    ByteBuffer buff = ByteBuffer.wrap("HTTP/1.1 200 OK\r\nNo colon here\r\n\r\n".getBytes("ASCII")).compact();
+    HTTPReader reader = new HTTPReader(null, buff);
+    assertThrows(HTTPException.class, () -> reader.readHeader());
+  }
+
   /**
    * Test for readBytes with a null SocketChannel
    * @throws java.io.IOException
@@ -159,4 +240,178 @@ public class HTTPReaderTest {
       server.shutdown();
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Test for readBytes with a fake server closing the connection before all the
+   * bytes are sent
+   * @throws java.io.IOException
+   */
+  @Test
+  public void testReadBytes3() throws IOException {
+    FakeHTTPServer server = new FakeHTTPServer("DEFGH", 5);
+    try {
+      server.serve();
+      SocketChannel sc = SocketChannel.open();
+      sc.connect(new InetSocketAddress("localhost", server.getPort()));
+      HTTPReader reader = new HTTPReader(sc, ByteBuffer.allocate(12));
+      assertThrows(HTTPException.class, () -> reader.readBytes(10));
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  /**
+   * Test for readChunks with chunk extensions and trailer fields
+   * @throws java.io.IOException
+   */
+  @Test
+  public void testReadChunks2() throws IOException {
+    final String BUFFER_INITIAL_CONTENT = "4;name=value\r\nWiki\r\na \r\npedia in c\r\n0\r\nExpires: never\r\n\r\nNEXT";
+    ByteBuffer buff = ByteBuffer.wrap(BUFFER_INITIAL_CONTENT.getBytes("ASCII")).compact();
+    HTTPReader reader = new HTTPReader(null, buff);
+    assertEquals("Wikipedia in c", StandardCharsets.US_ASCII.decode(reader.readChunks().flip()).toString());
+    assertEquals(ByteBuffer.wrap("NEXT".getBytes("ASCII")), buff.flip());
+  }
+
+  /**
+   * Test for readChunks with many chunks with FakeServer
+   * @throws java.io.IOException
+   */
+  @Test
+  public void testReadChunks3() throws IOException {
+    var chunks = new StringBuilder();
+    var expected = new StringBuilder();
+    for (var i = 0; i < 10_000; i++) {
+      var chunk = String.valueOf((char) ('a' + i % 26)).repeat(1 + i % 300);
+      chunks.append(Integer.toHexString(chunk.length())).append("\r\n").append(chunk).append("\r\n");
+      expected.append(chunk);
+    }
+    chunks.append("0\r\n\r\n");
+    FakeHTTPServer server = new FakeHTTPServer(chunks.toString(), chunks.length());
+    try {
+      server.serve();
+      SocketChannel sc = SocketChannel.open();
+      sc.connect(new InetSocketAddress("localhost", server.getPort()));
+      HTTPReader reader = new HTTPReader(sc, ByteBuffer.allocate(1024));
+      assertEquals(expected.toString(), StandardCharsets.US_ASCII.decode(reader.readChunks().flip()).toString());
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  /**
+   * Test for readChunks with an invalid chunk size
+   */
+  @Test
+  public void testReadChunksIllFormed() throws IOException {
+    ByteBuffer buff = ByteBuffer.wrap("4x\r\nWiki\r\n0\r\n\r\n".getBytes("ASCII")).compact();
+    HTTPReader reader = new HTTPReader(null, buff);
+    assertThrows(HTTPException.class, () -> reader.readChunks());
+  }
+
+  /**
+   * Reads channel until its end in pieces of pieceSize bytes
+   */
+  private static String readAll(java.nio.channels.ReadableByteChannel channel, int pieceSize) throws IOException {
+    var content = new StringBuilder();
+    var piece = ByteBuffer.allocate(pieceSize);
+    while (channel.read(piece) != -1) {
+      content.append(StandardCharsets.US_ASCII.decode(piece.flip()));
+      piece.clear();
+    }
+    return content.toString();
+  }
+
+  /**
+   * Test for bodyChannel with a Content-Length and a null SocketChannel
+   * @throws java.io.IOException
+   */
+  @Test
+  public void testBodyChannelFixedLength() throws IOException {
+    final String BUFFER_INITIAL_CONTENT = "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n0123456789NEXT";
+    ByteBuffer buff = ByteBuffer.wrap(BUFFER_INITIAL_CONTENT.getBytes("ASCII")).compact();
+    HTTPReader reader = new HTTPReader(null, buff);
+    var body = reader.bodyChannel(reader.readHeader());
+    assertEquals("0123456789", readAll(body, 3));
+    assertEquals(ByteBuffer.wrap("NEXT".getBytes("ASCII")), buff.flip());
+  }
+
+  /**
+   * Test for bodyChannel with a chunked body with FakeServer
+   * @throws java.io.IOException
+   */
+  @Test
+  public void testBodyChannelChunked() throws IOException {
+    FakeHTTPServer server = new FakeHTTPServer("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "4\r\nWiki\r\n5\r\npedia\r\nE\r\n in\r\n\r\nchunks.\r\n0\r\n\r\n", 16);
+    try {
+      server.serve();
+      SocketChannel sc = SocketChannel.open();
+      sc.connect(new InetSocketAddress("localhost", server.getPort()));
+      HTTPReader reader = new HTTPReader(sc, ByteBuffer.allocate(12));
+      var body = reader.bodyChannel(reader.readHeader());
+      assertEquals("Wikipedia in\r\n\r\nchunks.", readAll(body, 5));
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  /**
+   * Test for bodyChannel without Content-Length nor chunks with FakeServer
+   * @throws java.io.IOException
+   */
+  @Test
+  public void testBodyChannelUntilClose() throws IOException {
+    FakeHTTPServer server = new FakeHTTPServer("HTTP/1.0 200 OK\r\n\r\nThe body ends with the connection", 20);
+    try {
+      server.serve();
+      SocketChannel sc = SocketChannel.open();
+      sc.connect(new InetSocketAddress("localhost", server.getPort()));
+      HTTPReader reader = new HTTPReader(sc, ByteBuffer.allocate(12));
+      var body = reader.bodyChannel(reader.readHeader());
+      assertEquals("The body ends with the connection", readAll(body, 7));
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  /**
+   * Test for bodyChannel with a Content-Length over Integer.MAX_VALUE: the body
+   * is streamed without ever being held in memory
+   * @throws java.io.IOException
+   */
+  @Test
+  public void testBodyChannelOver2GB() throws IOException, InterruptedException {
+    var length = (1L << 31) + 10;
+    try (var ssc = ServerSocketChannel.open()) {
+      ssc.bind(null);
+      var server = Thread.ofPlatform().daemon().start(() -> {
+        try (var client = ssc.accept()) {
+          client.write(StandardCharsets.US_ASCII.encode("HTTP/1.1 200 OK\r\nContent-Length: " + length + "\r\n\r\n"));
+          var zeros = ByteBuffer.allocateDirect(1 << 20);
+          for (var remaining = length; remaining > 0; ) {
+            zeros.clear().limit((int) Math.min(zeros.capacity(), remaining));
+            remaining -= client.write(zeros);
+          }
+        } catch (IOException e) {
+          // the test fails on the client side
+        }
+      });
+      try (var sc = SocketChannel.open(ssc.getLocalAddress())) {
+        HTTPReader reader = new HTTPReader(sc, ByteBuffer.allocate(1_024));
+        var header = reader.readHeader();
+        assertEquals(length, header.getContentLengthLong());
+        var body = reader.bodyChannel(header);
+        var piece = ByteBuffer.allocateDirect(1 << 20);
+        var total = 0L;
+        int read;
+        while ((read = body.read(piece.clear())) != -1) {
+          total += read;
+        }
+        assertEquals(length, total);
+        assertEquals(-1, body.read(piece.clear()));
+      }
+      server.join();
+    }
+  }
+}